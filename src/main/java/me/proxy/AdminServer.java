@@ -0,0 +1,191 @@
+package me.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local HTTP/JSON admin endpoint.
+ *
+ * {@code GET /tunnels?sort=bytes|age|idle|throughput&limit=N} lists the active tunnels,
+ * {@code POST /tunnels/kill?id=N} closes a tunnel,
+ * {@code GET /egress} lists the socket usage of the direct connections' source addresses.
+ *
+ * Requests with a Host other than the loopback admin address, or with an Origin from any other site, are
+ * rejected, so web pages in a local browser can not reach the endpoint, e.g. with a form posted to kill tunnels.
+ */
+public class AdminServer {
+    static Logger logger = LoggerFactory.getLogger(AdminServer.class);
+
+    private HttpServer server;
+
+    public AdminServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(null);
+        server.createContext("/tunnels", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!isLocal(exchange)) {
+                        respond(exchange, 403, "{\"error\":\"forbidden\"}");
+                        return;
+                    }
+                    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                    String path = exchange.getRequestURI().getPath();
+                    if (path.equals("/tunnels") && exchange.getRequestMethod().equals("GET")) {
+                        int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : 0;
+                        respond(exchange, 200, toJson(Tunnels.list(query.get("sort"), limit)));
+                    } else if (path.equals("/tunnels/kill") && exchange.getRequestMethod().equals("POST")) {
+                        boolean killed = Tunnels.kill(Long.parseLong(query.get("id")));
+                        respond(exchange, killed ? 200 : 404, "{\"killed\":" + killed + "}");
+                    } else {
+                        respond(exchange, 404, "{\"error\":\"not found\"}");
+                    }
+                } catch (IllegalArgumentException e) {
+                    respond(exchange, 400, "{\"error\":" + quote(String.valueOf(e.getMessage())) + "}");
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/egress", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!isLocal(exchange)) {
+                        respond(exchange, 403, "{\"error\":\"forbidden\"}");
+                        return;
+                    }
+                    if (exchange.getRequestURI().getPath().equals("/egress") && exchange.getRequestMethod().equals("GET")) {
+                        respond(exchange, 200, toEgressJson(Egress.list()));
+                    } else {
+                        respond(exchange, 404, "{\"error\":\"not found\"}");
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * The request is addressed to the admin endpoint, and does not come from a page of another site.
+     */
+    private boolean isLocal(HttpExchange exchange) {
+        int port = server.getAddress().getPort();
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        if (host == null || !(host.equals("127.0.0.1:" + port) || host.equals("localhost:" + port)
+                || host.equals("[::1]:" + port))) {
+            return false;
+        }
+        String origin = exchange.getRequestHeaders().getFirst("Origin");
+        return origin == null || origin.equals("http://" + host);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, data.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(data);
+        out.close();
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> result = new HashMap<>();
+        if (query == null) {
+            return result;
+        }
+        for (String pair : query.split("&")) {
+            String[] parts = pair.split("=", 2);
+            result.put(parts[0], parts.length == 2 ? parts[1] : "");
+        }
+        return result;
+    }
+
+    private static String toJson(List<Tunnels.TunnelInfo> tunnels) {
+        StringBuilder json = new StringBuilder("[");
+        for (Tunnels.TunnelInfo tunnel : tunnels) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(tunnel.getId())
+                    .append(",\"client\":").append(quote(tunnel.getClient()))
+                    .append(",\"destination\":").append(quote(tunnel.getDestination()))
+                    .append(",\"provider\":").append(quote(tunnel.getProvider()))
+                    .append(",\"session\":").append(quote(tunnel.getSession()))
+                    .append(",\"age\":").append(tunnel.getAge())
+                    .append(",\"idle\":").append(tunnel.getIdle())
+                    .append(",\"bytesIn\":").append(tunnel.getBytesIn())
+                    .append(",\"bytesOut\":").append(tunnel.getBytesOut())
+                    .append(",\"throughput\":").append(tunnel.getThroughput())
+                    .append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private static String toEgressJson(List<Egress.SourceInfo> sources) {
+        StringBuilder json = new StringBuilder("[");
+        for (Egress.SourceInfo source : sources) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("{\"address\":").append(quote(source.getAddress()))
+                    .append(",\"active\":").append(source.getActive())
+                    .append(",\"connects\":").append(source.getConnects())
+                    .append(",\"failures\":").append(source.getFailures())
+                    .append(",\"exhausted\":").append(source.getExhausted())
+                    .append(",\"lastExhausted\":").append(source.getLastExhausted())
+                    .append(",\"destinations\":").append(source.getDestinations())
+                    .append(",\"maxPerDestination\":").append(source.getMaxPerDestination())
+                    .append(",\"portUsage\":").append(source.getPortUsage())
+                    .append(",\"topDestinations\":{");
+            boolean first = true;
+            for (Map.Entry<String, Integer> entry : source.getTopDestinations().entrySet()) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                json.append(quote(entry.getKey())).append(':').append(entry.getValue());
+            }
+            json.append("}}");
+        }
+        return json.append(']').toString();
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder result = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+}
@@ -10,12 +10,16 @@ import org.apache.logging.log4j.core.LoggerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @Parameters(separators = "=")
 public class Application {
@@ -25,6 +29,8 @@ public class Application {
     Application () {
         factoryMap = new HashMap<>();
         factoryMap.put("ssh", SSHTransportProvider.factory);
+        factoryMap.put("socks5", Socks5TransportProvider.factory);
+        factoryMap.put("http", HttpTransportProvider.factory);
     }
 
     @Parameter(description = "proxies")
@@ -39,6 +45,44 @@ public class Application {
     @Parameter(names="-p2", description="port for proxy")
     private int port2=0;
 
+    @Parameter(names="-acceptors", description="number of acceptors per port, bound with SO_REUSEPORT")
+    private int acceptors=1;
+
+    @Parameter(names="-admin", description="port for the local admin endpoint, 0 to disable")
+    private int adminPort=0;
+
+    @Parameter(names="-trace", description="record the workload to a trace file for TraceReplay")
+    private String traceFile = null;
+
+    @Parameter(names="-source", description="local source addresses for the direct connections, comma separated")
+    private List<String> sources = new ArrayList<>();
+
+    @Parameter(names="-source-select", description="source selection: consistent by destination or least-used")
+    private String sourceSelect = Egress.CONSISTENT;
+
+    @Parameter(names="-jfr", description="continuous flight recording, dump it with jcmd JFR.dump")
+    private boolean jfr = false;
+
+    private static final int PROVIDER_RETRY_DELAY = 30;
+    private ScheduledExecutorService providerExecutor;
+
+    void startProvider(final TransportProvider provider) {
+        providerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    provider.init();
+                    logger.info("Provider {} is available after {} ms", provider.getName(), System.currentTimeMillis() - start);
+                } catch (Exception e) {
+                    logger.warn("Provider {} failed to start after {} ms, retry in {} s: {}", provider.getName(),
+                            System.currentTimeMillis() - start, PROVIDER_RETRY_DELAY, e.getMessage());
+                    providerExecutor.schedule(this, PROVIDER_RETRY_DELAY, TimeUnit.SECONDS);
+                }
+            }
+        });
+    }
+
     TransportProvider createProxy(String proxy) {
         try {
             URI proxyUri = new URI(proxy);
@@ -53,20 +97,59 @@ public class Application {
     }
 
     void run() throws IOException {
+        List<TransportProvider> providers = new ArrayList<>();
         for (String proxy : proxies) {
             TransportProvider provider = createProxy(proxy);
             if (provider != null) {
                 logger.info("Apply proxy: {}", proxy);
                 ProxyService.addProxy(provider);
+                providers.add(provider);
             }
         }
+        Egress.configure(sources, sourceSelect);
+        if (!sources.isEmpty()) {
+            logger.info("Direct from: {} ({})", sources, sourceSelect);
+        }
         logger.info("Bind at: {}", port);
-        new Server(port, new Socks5Service(false), 50, 400).start();
+        new Server(port, new Socks5Service(false), 50, 400, acceptors).start();
         if (port2 == 0) {
             port2 = port + 1;
         }
         logger.info("Bind at: {}", port2);
-        new Server(port2, new Socks5Service(true), 20, 100).start();
+        new Server(port2, new Socks5Service(true), 20, 100, acceptors).start();
+
+        Tunnels.initJMX();
+        Egress.initJMX();
+        if (traceFile != null) {
+            logger.info("Trace to: {}", traceFile);
+            Trace.start(new File(traceFile));
+        }
+        if (adminPort != 0) {
+            logger.info("Admin at: {}", adminPort);
+            new AdminServer(adminPort).start();
+        }
+
+        providerExecutor = Executors.newScheduledThreadPool(Math.max(1, providers.size()),
+                new Server.DaemonThreadFactory("provider"));
+        for (TransportProvider provider : providers) {
+            startProvider(provider);
+        }
+    }
+
+    void startRecording() {
+        if (!jfr) {
+            return;
+        }
+        if (!ProxyEvents.AVAILABLE) {
+            logger.warn("Flight recorder is not available in this runtime");
+            return;
+        }
+        try {
+            JfrEvents.startRecording();
+            logger.info("Flight recording started");
+        } catch (Exception e) {
+            logger.error("failed to start flight recording", e);
+        }
     }
 
     void configLogger() {
@@ -84,6 +167,7 @@ public class Application {
         new JCommander(application, args);
 
         application.configLogger();
+        application.startRecording();
         application.run();
     }
 }
@@ -0,0 +1,152 @@
+package me.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Provider chaining to an upstream proxy over a plain socket.
+ *
+ * The whole handshake is sent in one write right after the TCP connect, and the transport is returned once the
+ * reply has been read. A refused connect fails like a TCP connect failure, so the next provider is tried. The
+ * timeout covers the TCP connect and the reply.
+ */
+abstract class ChainTransportProvider implements TransportProvider {
+    private String name;
+    private String host;
+    private int port;
+    protected String user;
+    protected String password;
+    private volatile InetSocketAddress address;
+
+    protected ChainTransportProvider(String scheme, URI uri, int defaultPort) {
+        this.name = scheme + "@" + uri.getHost();
+        this.host = uri.getHost();
+        this.port = uri.getPort();
+        if (this.port == -1) {
+            this.port = defaultPort;
+        }
+
+        if (uri.getUserInfo() != null) {
+            String[] parts = uri.getUserInfo().split(":", 2);
+            this.user = parts[0];
+            this.password = parts.length == 2?parts[1]:"";
+        }
+    }
+
+    /**
+     * Handshake sent to the upstream proxy to connect to the destination.
+     */
+    protected abstract byte[] request(String host, int port) throws IOException;
+
+    /**
+     * Read the upstream proxy's replies to the request, throwing if the connect failed.
+     */
+    protected abstract void response(InputStream in) throws IOException;
+
+    @Override
+    public void init() throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new IOException("unknown host " + host);
+        }
+        this.address = address;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return address != null;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Transport connect(String host, int port, int timeout) throws IOException {
+        return Connector.await(connectAsync(host, port, timeout));
+    }
+
+    @Override
+    public CompletableFuture<Transport> connectAsync(final String host, final int port, int timeout) {
+        final CompletableFuture<Transport> result = new CompletableFuture<>();
+        final long deadline = System.currentTimeMillis() + timeout;
+        final CompletableFuture<SocketChannel> connecting = Connector.connect(address, timeout);
+        result.whenComplete((transport, e) -> connecting.cancel(false));
+        // completed on the connector's pool, which allows blocking for the reply
+        connecting.whenComplete((channel, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+                return;
+            }
+
+            final ChainTransport transport = new ChainTransport(channel, host, port);
+            // the channel's read ignores SO_TIMEOUT, a reply not in time closes the transport
+            ScheduledFuture<?> timer = Connector.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    result.completeExceptionally(new SocketTimeoutException(name + " connect " + host + ":" + port + " timeout"));
+                    transport.close();
+                }
+            }, Math.max(0, deadline - System.currentTimeMillis()));
+            try {
+                OutputStream out = transport.getOutputStream();
+                out.write(request(host, port));
+                out.flush();
+                response(transport.getInputStream());
+            } catch (IOException ex) {
+                transport.close();
+                result.completeExceptionally(ex);
+                return;
+            } finally {
+                timer.cancel(false);
+            }
+            if (!result.complete(transport)) {
+                transport.close();
+            }
+        });
+        return result;
+    }
+
+    private class ChainTransport implements Transport {
+        private SocketTransport transport;
+        private String host;
+        private int port;
+
+        private ChainTransport(SocketChannel channel, String host, int port) {
+            this.transport = new SocketTransport(channel);
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return transport.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return transport.getOutputStream();
+        }
+
+        @Override
+        public void close() {
+            try {
+                transport.close();
+            } catch (IOException ignore) {
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + "[host=" + host + ",port=" + port + "]";
+        }
+    }
+}
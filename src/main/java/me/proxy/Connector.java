@@ -0,0 +1,216 @@
+package me.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Non-blocking TCP connects on a single selector thread.
+ *
+ * The futures are completed on a separate pool, so callers may block in their completion stages; the channels
+ * are handed over in blocking mode.
+ */
+class Connector {
+    static Logger logger = LoggerFactory.getLogger(Connector.class);
+
+    private static class Request {
+        private final SocketChannel channel;
+        private final CompletableFuture<SocketChannel> future;
+
+        private Request(SocketChannel channel, CompletableFuture<SocketChannel> future) {
+            this.channel = channel;
+            this.future = future;
+        }
+    }
+
+    private static final Queue<Request> requests = new ConcurrentLinkedQueue<>();
+    private static final ExecutorService completer = Executors.newCachedThreadPool(new Server.DaemonThreadFactory("connector"));
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new Server.DaemonThreadFactory("connector-timer"));
+    private static Selector selector;
+
+    private static synchronized Selector selector() throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, "connector-selector");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return selector;
+    }
+
+    static ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait for a connect started asynchronously, rethrowing its failure.
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Connect to the address, failing with SocketTimeoutException after timeout milliseconds. Cancelling the
+     * future aborts the connect.
+     */
+    static CompletableFuture<SocketChannel> connect(SocketAddress address, int timeout) {
+        return connect(null, address, timeout);
+    }
+
+    /**
+     * Connect from the local address, any local address if null.
+     */
+    static CompletableFuture<SocketChannel> connect(SocketAddress local, SocketAddress address, int timeout) {
+        final CompletableFuture<SocketChannel> future = new CompletableFuture<>();
+        final SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        future.whenComplete((connected, e) -> {
+            if (e != null) {
+                close(channel);
+            }
+        });
+        final ScheduledFuture<?> timeoutTask = schedule(new Runnable() {
+            @Override
+            public void run() {
+                future.completeExceptionally(new SocketTimeoutException("connect " + address + " timeout"));
+            }
+        }, timeout);
+        future.whenComplete((connected, e) -> timeoutTask.cancel(false));
+
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (local != null) {
+                // share the port with the sockets connected to other destinations
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.bind(local);
+            }
+            channel.configureBlocking(false);
+            if (channel.connect(address)) {
+                channel.configureBlocking(true);
+                complete(future, channel);
+            } else {
+                requests.add(new Request(channel, future));
+                selector().wakeup();
+            }
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static void complete(final CompletableFuture<SocketChannel> future, final SocketChannel channel) {
+        completer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!future.complete(channel)) {
+                    close(channel);
+                }
+            }
+        });
+    }
+
+    private static void fail(final CompletableFuture<SocketChannel> future, final IOException e) {
+        completer.execute(new Runnable() {
+            @Override
+            public void run() {
+                future.completeExceptionally(e);
+            }
+        });
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private static void loop() {
+        List<Request> connected = new ArrayList<>();
+        while (true) {
+            try {
+                selector.select();
+
+                Request request;
+                while ((request = requests.poll()) != null) {
+                    if (request.future.isDone()) {
+                        continue;
+                    }
+                    try {
+                        request.channel.register(selector, SelectionKey.OP_CONNECT, request);
+                    } catch (IOException e) {
+                        fail(request.future, e);
+                    }
+                }
+
+                do {
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        request = (Request) key.attachment();
+                        try {
+                            if (request.channel.finishConnect()) {
+                                key.cancel();
+                                connected.add(request);
+                            }
+                        } catch (IOException e) {
+                            key.cancel();
+                            fail(request.future, e);
+                        }
+                    }
+
+                    if (connected.isEmpty()) {
+                        break;
+                    }
+                    // deregister the cancelled keys before switching to blocking mode
+                    selector.selectNow();
+                    for (Request done : connected) {
+                        try {
+                            done.channel.configureBlocking(true);
+                            complete(done.future, done.channel);
+                        } catch (IOException e) {
+                            fail(done.future, e);
+                        }
+                    }
+                    connected.clear();
+                } while (!selector.selectedKeys().isEmpty());
+            } catch (Exception e) {
+                logger.error("connector error", e);
+            }
+        }
+    }
+}
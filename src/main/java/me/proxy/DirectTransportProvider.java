@@ -0,0 +1,167 @@
+package me.proxy;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class DirectTransportProvider implements TransportProvider {
+    private static final int CONNECT_DELAY = 250;
+
+    private static final Resolver resolver = new Resolver(4);
+
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return "direct";
+    }
+
+    public Transport connect(String host, int port, int timeout) throws IOException {
+        return Connector.await(connectAsync(host, port, timeout));
+    }
+
+    @Override
+    public CompletableFuture<Transport> connectAsync(final String host, final int port, int timeout) {
+        final long deadline = System.currentTimeMillis() + timeout;
+        final CompletableFuture<Transport> result = new CompletableFuture<>();
+        final CompletableFuture<SocketChannel> connecting = new CompletableFuture<>();
+        result.whenComplete((transport, e) -> connecting.cancel(false));
+        connecting.whenComplete((channel, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else if (!result.complete(new SocketTransport(channel) {
+                @Override
+                public void close() throws IOException {
+                    Egress.release(channel);
+                    super.close();
+                }
+            })) {
+                close(channel);
+            }
+        });
+        final ScheduledFuture<?> timeoutTask = Connector.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connecting.completeExceptionally(new SocketTimeoutException("connect " + host + " timeout"));
+            }
+        }, timeout);
+        connecting.whenComplete((channel, e) -> timeoutTask.cancel(false));
+
+        resolver.resolveAsync(host).whenComplete((addresses, e) -> {
+            if (e != null) {
+                connecting.completeExceptionally(e);
+            } else {
+                new Attempts(interleave(addresses), port, deadline, connecting).next(0);
+            }
+        });
+        return result;
+    }
+
+    private static void close(SocketChannel channel) {
+        Egress.release(channel);
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Connect to the addresses in order, starting the next attempt whenever the previous one failed or did not
+     * finish within CONNECT_DELAY, and take the first connection established.
+     */
+    private static class Attempts {
+        private final List<InetAddress> addresses;
+        private final int port;
+        private final long deadline;
+        private final CompletableFuture<SocketChannel> result;
+        private final List<CompletableFuture<SocketChannel>> attempts = new CopyOnWriteArrayList<>();
+        private final AtomicInteger started = new AtomicInteger(0);
+        private final AtomicInteger failed = new AtomicInteger(0);
+
+        private Attempts(List<InetAddress> addresses, int port, long deadline, CompletableFuture<SocketChannel> result) {
+            this.addresses = addresses;
+            this.port = port;
+            this.deadline = deadline;
+            this.result = result;
+            result.whenComplete((channel, e) -> {
+                for (CompletableFuture<SocketChannel> attempt : attempts) {
+                    attempt.cancel(false);
+                }
+            });
+        }
+
+        private void next(int index) {
+            if (index >= addresses.size() || result.isDone() || !started.compareAndSet(index, index + 1)) {
+                return;
+            }
+
+            final int timeout = (int) (deadline - System.currentTimeMillis());
+            if (timeout <= 0) {
+                result.completeExceptionally(new SocketTimeoutException("connect " + addresses + " timeout"));
+                return;
+            }
+
+            CompletableFuture<SocketChannel> attempt = Egress.connect(new InetSocketAddress(addresses.get(index), port), timeout);
+            attempts.add(attempt);
+            if (result.isDone()) {
+                attempt.cancel(false);
+                return;
+            }
+            attempt.whenComplete((channel, e) -> {
+                if (e == null) {
+                    if (!result.complete(channel)) {
+                        close(channel);
+                    }
+                } else if (failed.incrementAndGet() == addresses.size()) {
+                    result.completeExceptionally(e);
+                } else {
+                    next(started.get());
+                }
+            });
+            Connector.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    next(index + 1);
+                }
+            }, CONNECT_DELAY);
+        }
+    }
+
+    /**
+     * Alternate the address families, keeping the order of the resolver for each of them.
+     */
+    private static List<InetAddress> interleave(InetAddress[] addresses) {
+        LinkedList<InetAddress> first = new LinkedList<>();
+        LinkedList<InetAddress> second = new LinkedList<>();
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == (addresses[0] instanceof Inet6Address)) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+
+        List<InetAddress> result = new ArrayList<>(addresses.length);
+        while (!first.isEmpty() || !second.isEmpty()) {
+            if (!first.isEmpty()) {
+                result.add(first.poll());
+            }
+            if (!second.isEmpty()) {
+                result.add(second.poll());
+            }
+        }
+        return result;
+    }
+}
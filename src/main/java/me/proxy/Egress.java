@@ -0,0 +1,422 @@
+package me.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.BindException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local source addresses of the direct connections.
+ *
+ * Binding port 0 takes the port before the destination is known (java can not set IP_BIND_ADDRESS_NO_PORT), so
+ * all destinations would share one port range per source. Instead each source picks an explicit port per
+ * destination from the ephemeral range and binds it with SO_REUSEADDR: a port in use to one destination is reused
+ * for the others, and the limit is the 4-tuple, a full port range per source and destination. A port that does not
+ * bind or connect, e.g. held by a listener or in TIME_WAIT to the destination, is skipped for the next one; after
+ * BIND_ATTEMPTS the next source is tried and the exhausted source goes last for EXHAUSTED_BACKOFF.
+ *
+ * The direct connections are spread over the configured sources, picked by a hash of the destination (consistent)
+ * or by the fewest sockets open to the destination (least-used). Without sources, or none of the destination's
+ * family, the connections leave from any address on a port taken by the kernel and are still counted.
+ */
+public class Egress {
+    static Logger logger = LoggerFactory.getLogger(Egress.class);
+
+    static final String CONSISTENT = "consistent";
+    static final String LEAST_USED = "least-used";
+
+    private static final int TOP_DESTINATIONS = 10;
+    private static final int EXHAUSTED_BACKOFF = 1000;
+    private static final int BIND_ATTEMPTS = 8;
+
+    private static final Source any = new Source(null);
+    private static volatile List<Source> sources = Collections.emptyList();
+    private static volatile boolean leastUsed = false;
+    private static final Map<SocketChannel, Lease> leases = new ConcurrentHashMap<>();
+    private static final int[] ports = ephemeralPorts();
+    private static final int portRange = ports[1] - ports[0] + 1;
+
+    /**
+     * Ports of a source in use to one destination, taken from a cursor starting at a random port so freed ports,
+     * possibly in TIME_WAIT, are taken last.
+     */
+    private static class Ports {
+        private final Set<Integer> used = new HashSet<>();
+        private int next = ThreadLocalRandom.current().nextInt(portRange);
+        // sockets of the unbound source, which have no port of their own
+        private int unbound = 0;
+
+        private int count() {
+            return used.size() + unbound;
+        }
+
+        private int take(boolean bound) {
+            if (!bound) {
+                unbound++;
+                return 0;
+            }
+            if (used.size() >= portRange) {
+                return -1;
+            }
+            int port;
+            do {
+                port = ports[0] + next;
+                next = (next + 1) % portRange;
+            } while (!used.add(port));
+            return port;
+        }
+
+        private void free(int port) {
+            if (port == 0) {
+                unbound--;
+            } else {
+                used.remove(port);
+            }
+        }
+    }
+
+    static class Source {
+        private final InetAddress address;
+        // guarded by the map's per key locking
+        private final Map<InetSocketAddress, Ports> destinations = new ConcurrentHashMap<>();
+        private final Map<InetSocketAddress, Integer> counts = new ConcurrentHashMap<>();
+        private final AtomicInteger active = new AtomicInteger(0);
+        private final AtomicLong connects = new AtomicLong(0);
+        private final AtomicLong failures = new AtomicLong(0);
+        private final AtomicLong exhausted = new AtomicLong(0);
+        private volatile long lastExhausted = 0;
+
+        private Source(InetAddress address) {
+            this.address = address;
+        }
+
+        private boolean accepts(InetSocketAddress destination) {
+            return address == null
+                    || (address instanceof Inet6Address) == (destination.getAddress() instanceof Inet6Address);
+        }
+
+        private int active(InetSocketAddress destination) {
+            Integer count = counts.get(destination);
+            return count == null ? 0 : count;
+        }
+
+        /**
+         * Take a port to the destination, 0 for the unbound source, -1 if all ports are in use to it.
+         */
+        private int acquire(InetSocketAddress destination) {
+            final int[] port = new int[1];
+            destinations.compute(destination, (key, ports) -> {
+                if (ports == null) {
+                    ports = new Ports();
+                }
+                port[0] = ports.take(address != null);
+                update(destination, ports);
+                return ports.count() == 0 ? null : ports;
+            });
+            if (port[0] >= 0) {
+                active.incrementAndGet();
+            }
+            return port[0];
+        }
+
+        private void release(InetSocketAddress destination, final int port) {
+            active.decrementAndGet();
+            destinations.computeIfPresent(destination, (key, ports) -> {
+                ports.free(port);
+                update(destination, ports);
+                return ports.count() == 0 ? null : ports;
+            });
+        }
+
+        private void update(InetSocketAddress destination, Ports ports) {
+            if (ports.count() == 0) {
+                counts.remove(destination);
+            } else {
+                counts.put(destination, ports.count());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return address == null ? "*" : address.getHostAddress();
+        }
+    }
+
+    private static class Lease {
+        private final Source source;
+        private final InetSocketAddress destination;
+        private final int port;
+
+        private Lease(Source source, InetSocketAddress destination, int port) {
+            this.source = source;
+            this.destination = destination;
+            this.port = port;
+        }
+    }
+
+    static void configure(List<String> addresses, String mode) throws UnknownHostException {
+        if (!CONSISTENT.equals(mode) && !LEAST_USED.equals(mode)) {
+            throw new IllegalArgumentException("unknown source selection " + mode);
+        }
+        List<Source> result = new ArrayList<>();
+        for (String address : addresses) {
+            result.add(new Source(InetAddress.getByName(address)));
+        }
+        leastUsed = LEAST_USED.equals(mode);
+        sources = result;
+    }
+
+    /**
+     * Sources for the destination, in the order to try them.
+     */
+    private static List<Source> select(InetSocketAddress destination) {
+        List<Source> candidates = new ArrayList<>();
+        for (Source source : sources) {
+            if (source.accepts(destination)) {
+                candidates.add(source);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return Collections.singletonList(any);
+        }
+
+        if (leastUsed) {
+            candidates.sort(Comparator.comparingInt((Source source) -> source.active(destination))
+                    .thenComparingInt(source -> source.active.get()));
+        } else {
+            Collections.rotate(candidates, -((destination.hashCode() & Integer.MAX_VALUE) % candidates.size()));
+        }
+        // sources just out of ports are tried last
+        long now = System.currentTimeMillis();
+        candidates.sort(Comparator.comparing((Source source) -> now - source.lastExhausted < EXHAUSTED_BACKOFF));
+        return candidates;
+    }
+
+    /**
+     * Connect to the destination from the selected source, moving on to the next port while binding fails and to
+     * the next source once the ports tried are exhausted. The channel is counted until it is released.
+     */
+    static CompletableFuture<SocketChannel> connect(InetSocketAddress destination, int timeout) {
+        CompletableFuture<SocketChannel> result = new CompletableFuture<>();
+        connect(select(destination), 0, 0, destination, System.currentTimeMillis() + timeout, result);
+        return result;
+    }
+
+    private static void connect(final List<Source> candidates, final int index, final int attempts,
+                                final InetSocketAddress destination, final long deadline,
+                                final CompletableFuture<SocketChannel> result) {
+        final int timeout = (int) (deadline - System.currentTimeMillis());
+        if (timeout <= 0) {
+            result.completeExceptionally(new SocketTimeoutException("connect " + destination + " timeout"));
+            return;
+        }
+
+        final Source source = candidates.get(index);
+        // count the connect in progress, so concurrent least-used selections spread
+        final int port = source.acquire(destination);
+        if (port < 0) {
+            exhausted(candidates, index, destination, deadline, result,
+                    new BindException("all ports of " + source + " in use to " + destination));
+            return;
+        }
+        InetSocketAddress local = source.address == null ? null : new InetSocketAddress(source.address, port);
+        final CompletableFuture<SocketChannel> attempt = Connector.connect(local, destination, timeout);
+        result.whenComplete((channel, e) -> attempt.cancel(false));
+        attempt.whenComplete((channel, e) -> {
+            if (e == null) {
+                source.connects.incrementAndGet();
+                leases.put(channel, new Lease(source, destination, port));
+                if (!result.complete(channel)) {
+                    release(channel);
+                    try {
+                        channel.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+                return;
+            }
+
+            source.release(destination, port);
+            if (e instanceof BindException) {
+                if (source.address != null && attempts + 1 < BIND_ATTEMPTS) {
+                    connect(candidates, index, attempts + 1, destination, deadline, result);
+                } else {
+                    exhausted(candidates, index, destination, deadline, result, e);
+                }
+                return;
+            } else if (!(e instanceof CancellationException)) {
+                source.failures.incrementAndGet();
+            }
+            result.completeExceptionally(e);
+        });
+    }
+
+    private static void exhausted(List<Source> candidates, int index, InetSocketAddress destination, long deadline,
+                                  CompletableFuture<SocketChannel> result, Throwable e) {
+        Source source = candidates.get(index);
+        source.exhausted.incrementAndGet();
+        source.lastExhausted = System.currentTimeMillis();
+        logger.debug("source {} exhausted to {}: {}", source, destination, e.getMessage());
+        if (index + 1 < candidates.size()) {
+            connect(candidates, index + 1, 0, destination, deadline, result);
+        } else {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Stop counting a channel returned by connect, it may be released more than once.
+     */
+    static void release(SocketChannel channel) {
+        Lease lease = leases.remove(channel);
+        if (lease != null) {
+            lease.source.release(lease.destination, lease.port);
+        }
+    }
+
+    /**
+     * Lowest and highest ephemeral port of the host, the ports a source picks from.
+     */
+    private static int[] ephemeralPorts() {
+        try {
+            String[] range = new String(Files.readAllBytes(Paths.get("/proc/sys/net/ipv4/ip_local_port_range")),
+                    StandardCharsets.US_ASCII).trim().split("\\s+");
+            return new int[]{Integer.parseInt(range[0]), Integer.parseInt(range[1])};
+        } catch (Exception e) {
+            return new int[]{32768, 60999};
+        }
+    }
+
+    public static class SourceInfo {
+        private final String address;
+        private final int active;
+        private final long connects;
+        private final long failures;
+        private final long exhausted;
+        private final long lastExhausted;
+        private final int destinations;
+        private final int maxPerDestination;
+        private final Map<String, Integer> topDestinations = new LinkedHashMap<>();
+
+        private SourceInfo(Source source) {
+            this.address = source.toString();
+            this.active = source.active.get();
+            this.connects = source.connects.get();
+            this.failures = source.failures.get();
+            this.exhausted = source.exhausted.get();
+            this.lastExhausted = source.lastExhausted;
+
+            List<Map.Entry<InetSocketAddress, Integer>> entries = new ArrayList<>(source.counts.entrySet());
+            entries.sort(Map.Entry.<InetSocketAddress, Integer>comparingByValue().reversed());
+            this.destinations = entries.size();
+            this.maxPerDestination = entries.isEmpty() ? 0 : entries.get(0).getValue();
+            for (Map.Entry<InetSocketAddress, Integer> entry : entries.subList(0, Math.min(TOP_DESTINATIONS, entries.size()))) {
+                topDestinations.put(entry.getKey().getAddress().getHostAddress() + ":" + entry.getKey().getPort(), entry.getValue());
+            }
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public int getActive() {
+            return active;
+        }
+
+        public long getConnects() {
+            return connects;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getExhausted() {
+            return exhausted;
+        }
+
+        public long getLastExhausted() {
+            return lastExhausted;
+        }
+
+        public int getDestinations() {
+            return destinations;
+        }
+
+        public int getMaxPerDestination() {
+            return maxPerDestination;
+        }
+
+        /**
+         * Share of the ephemeral ports in use to the busiest destination, in percent. Sockets in TIME_WAIT are not
+         * counted.
+         */
+        public int getPortUsage() {
+            return (int) (maxPerDestination * 100L / portRange);
+        }
+
+        public Map<String, Integer> getTopDestinations() {
+            return topDestinations;
+        }
+    }
+
+    public static List<SourceInfo> list() {
+        List<SourceInfo> result = new ArrayList<>();
+        for (Source source : sources) {
+            result.add(new SourceInfo(source));
+        }
+        result.add(new SourceInfo(any));
+        return result;
+    }
+
+    public interface EgressMXBean {
+        int getPortRange();
+
+        List<SourceInfo> getSources();
+    }
+
+    public static class EgressBean implements EgressMXBean {
+        public int getPortRange() {
+            return portRange;
+        }
+
+        public List<SourceInfo> getSources() {
+            return list();
+        }
+    }
+
+    static void initJMX() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            mbs.registerMBean(new EgressBean(), new ObjectName("me.proxy:type=Egress"));
+        } catch (Exception ignore) {
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package me.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+public class HttpTransportProvider extends ChainTransportProvider {
+    public static final TransportProviderFactory factory =
+            new TransportProviderFactory() {
+                @Override
+                public TransportProvider create(URI proxyUri) {
+                    return new HttpTransportProvider(proxyUri);
+                }
+            };
+
+    public HttpTransportProvider(URI uri) {
+        super("http", uri, 8080);
+    }
+
+    @Override
+    protected byte[] request(String host, int port) {
+        String authority = (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+        StringBuilder request = new StringBuilder();
+        request.append("CONNECT ").append(authority).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(authority).append("\r\n");
+        if (user != null) {
+            String credentials = user + ":" + password;
+            request.append("Proxy-Authorization: Basic ")
+                    .append(Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)))
+                    .append("\r\n");
+        }
+        request.append("\r\n");
+        return request.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    protected void response(InputStream in) throws IOException {
+        String status = readLine(in);
+        String[] parts = status.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/") || !parts[1].equals("200")) {
+            throw new IOException("upstream connect failed: " + status);
+        }
+        while (!readLine(in).isEmpty()) {
+            // skip headers
+        }
+    }
+
+    // read byte by byte, nothing after the header may be consumed
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("upstream closed during connect");
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,207 @@
+package me.proxy;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.time.Duration;
+
+/**
+ * The flight recorder side of ProxyEvents, only loaded when the runtime has jdk.jfr.
+ *
+ * The events are committed for every connection, so they are recorded without stack traces.
+ */
+class JfrEvents {
+    private static final String CATEGORY = "SSH Proxy";
+
+    @Name("me.proxy.Handshake")
+    @Label("SOCKS Handshake")
+    @Description("SOCKS5 method negotiation and connect request")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Handshake extends Event {
+        @Label("Client")
+        String client;
+
+        @Label("Host")
+        String host;
+
+        @Label("Port")
+        int port;
+    }
+
+    @Name("me.proxy.Probe")
+    @Label("Availability Probe")
+    @Description("Reachability check of a provider server")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static class Probe extends Event {
+        @Label("Provider")
+        String provider;
+
+        @Label("Available")
+        boolean available;
+    }
+
+    @Name("me.proxy.Connect")
+    @Label("Connect Attempt")
+    @Description("Attempt to open a connection to the destination through a provider")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Connect extends Event {
+        @Label("Provider")
+        String provider;
+
+        @Label("Host")
+        String host;
+
+        @Label("Port")
+        int port;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("me.proxy.Session")
+    @Label("SSH Session")
+    @Description("Creation of a SSH session")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Session extends Event {
+        @Label("Provider")
+        String provider;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("me.proxy.FirstByte")
+    @Label("Time To First Byte")
+    @Description("From the start of the tunnel until the first byte from the destination")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class FirstByte extends Event {
+        @Label("Provider")
+        String provider;
+
+        @Label("Host")
+        String host;
+
+        @Label("Port")
+        int port;
+    }
+
+    @Name("me.proxy.Tunnel")
+    @Label("Tunnel")
+    @Description("Lifetime of a tunnel until it is closed")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Tunnel extends Event {
+        @Label("Provider")
+        String provider;
+
+        @Label("Host")
+        String host;
+
+        @Label("Port")
+        int port;
+
+        @Label("Bytes Out")
+        @DataAmount
+        long bytesOut;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+    }
+
+    static Object begin(ProxyEvents.ProxyEvent proxyEvent) {
+        Event event;
+        if (proxyEvent instanceof ProxyEvents.HandshakeEvent) {
+            event = new Handshake();
+        } else if (proxyEvent instanceof ProxyEvents.ProbeEvent) {
+            event = new Probe();
+        } else if (proxyEvent instanceof ProxyEvents.ConnectEvent) {
+            event = new Connect();
+        } else if (proxyEvent instanceof ProxyEvents.SessionEvent) {
+            event = new Session();
+        } else if (proxyEvent instanceof ProxyEvents.FirstByteEvent) {
+            event = new FirstByte();
+        } else {
+            event = new Tunnel();
+        }
+        event.begin();
+        return event;
+    }
+
+    static void end(Object event) {
+        ((Event) event).end();
+    }
+
+    static boolean shouldCommit(Object event) {
+        return ((Event) event).shouldCommit();
+    }
+
+    static void commit(ProxyEvents.ProxyEvent proxyEvent, Object event) {
+        if (event instanceof Handshake) {
+            ProxyEvents.HandshakeEvent source = (ProxyEvents.HandshakeEvent) proxyEvent;
+            Handshake handshake = (Handshake) event;
+            handshake.client = source.client;
+            handshake.host = source.host;
+            handshake.port = source.port;
+        } else if (event instanceof Probe) {
+            ProxyEvents.ProbeEvent source = (ProxyEvents.ProbeEvent) proxyEvent;
+            Probe probe = (Probe) event;
+            probe.provider = source.provider;
+            probe.available = source.available;
+        } else if (event instanceof Connect) {
+            ProxyEvents.ConnectEvent source = (ProxyEvents.ConnectEvent) proxyEvent;
+            Connect connect = (Connect) event;
+            connect.provider = source.provider;
+            connect.host = source.host;
+            connect.port = source.port;
+            connect.outcome = source.outcome;
+        } else if (event instanceof Session) {
+            ProxyEvents.SessionEvent source = (ProxyEvents.SessionEvent) proxyEvent;
+            Session session = (Session) event;
+            session.provider = source.provider;
+            session.outcome = source.outcome;
+        } else if (event instanceof FirstByte) {
+            ProxyEvents.FirstByteEvent source = (ProxyEvents.FirstByteEvent) proxyEvent;
+            FirstByte firstByte = (FirstByte) event;
+            firstByte.provider = source.provider;
+            firstByte.host = source.host;
+            firstByte.port = source.port;
+        } else {
+            ProxyEvents.TunnelEvent source = (ProxyEvents.TunnelEvent) proxyEvent;
+            Tunnel tunnel = (Tunnel) event;
+            tunnel.provider = source.provider;
+            tunnel.host = source.host;
+            tunnel.port = source.port;
+            tunnel.bytesOut = source.bytesOut;
+            tunnel.bytesIn = source.bytesIn;
+        }
+        ((Event) event).commit();
+    }
+
+    /**
+     * Continuous recording of the last hour with the default, low overhead settings.
+     */
+    static void startRecording() throws IOException, ParseException {
+        Recording recording = new Recording(Configuration.getConfiguration("default"));
+        recording.setName("sshproxy");
+        recording.setToDisk(true);
+        recording.setMaxAge(Duration.ofHours(1));
+        recording.start();
+    }
+}
@@ -0,0 +1,85 @@
+package me.proxy;
+
+/**
+ * Flight recorder events for the phases of a proxied connection, recorded with -jfr or -XX:StartFlightRecording.
+ *
+ * The events mirror the jdk.jfr.Event methods and carry their fields here; the flight recorder classes are only
+ * touched through JfrEvents, which is loaded when the runtime has them (java 11, 8u262+). On older runtimes the
+ * events do nothing.
+ */
+public class ProxyEvents {
+    static final boolean AVAILABLE = isAvailable();
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    abstract static class ProxyEvent {
+        // the jdk.jfr.Event, null without flight recorder
+        private Object event;
+
+        void begin() {
+            if (AVAILABLE) {
+                event = JfrEvents.begin(this);
+            }
+        }
+
+        void end() {
+            if (event != null) {
+                JfrEvents.end(event);
+            }
+        }
+
+        boolean shouldCommit() {
+            return event != null && JfrEvents.shouldCommit(event);
+        }
+
+        void commit() {
+            if (event != null) {
+                JfrEvents.commit(this, event);
+            }
+        }
+    }
+
+    static class HandshakeEvent extends ProxyEvent {
+        String client;
+        String host;
+        int port;
+    }
+
+    static class ProbeEvent extends ProxyEvent {
+        String provider;
+        boolean available;
+    }
+
+    static class ConnectEvent extends ProxyEvent {
+        String provider;
+        String host;
+        int port;
+        String outcome;
+    }
+
+    static class SessionEvent extends ProxyEvent {
+        String provider;
+        String outcome;
+    }
+
+    static class FirstByteEvent extends ProxyEvent {
+        String provider;
+        String host;
+        int port;
+    }
+
+    static class TunnelEvent extends ProxyEvent {
+        String provider;
+        String host;
+        int port;
+        long bytesOut;
+        long bytesIn;
+    }
+}
@@ -4,167 +4,279 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ProxyService {
     static Logger logger = LoggerFactory.getLogger(ProxyService.class);
-    private static class DirectTransportProvider implements TransportProvider {
-        public boolean isAvailable() {
-            return true;
-        }
-
-        @Override
-        public String getName() {
-            return "direct";
-        }
+    private static TransportProvider directTransportProvider = new DirectTransportProvider();
+    private static HashMap<String, TransportProvider> proxyProviders = new LinkedHashMap<>();
+    private static Map<String, TransportProvider> preferredProviders = new ConcurrentHashMap<>();
+    // hosts the direct route got no response from, tried after the proxies until the entry expires
+    private static Map<String, Long> directFailures = new ConcurrentHashMap<>();
+    private static final long DIRECT_FAILURE_TTL = 10 * 60 * 1000;
 
-        public Transport connect(String host, int port, int timeout) throws IOException {
-            Socket socket = new Socket();
-            socket.setTcpNoDelay(true);
-            socket.connect(new InetSocketAddress(host, port), timeout);
-            return new SocketTransport(socket);
-        }
+    public static void addProxy(TransportProvider transportProvider) {
+        proxyProviders.put(transportProvider.getName(), transportProvider);
     }
 
-    private static class SocketTransport implements TransportProvider.Transport {
-        private Socket socket;
-        public SocketTransport(Socket socket) {
-            this.socket = socket;
+    public static void setPreferredProxy(String host, String proxyName) {
+        TransportProvider transportProvider = proxyProviders.get(proxyName);
+        if (transportProvider != null) {
+            preferredProviders.put(host, transportProvider);
         }
+    }
 
-        @Override
-        public InputStream getInputStream() throws IOException {
-            return socket.getInputStream();
-        }
+    private static final int TIMEOUT = 5000;
+    private static final int ROUTE_THREADS = 4;
 
-        @Override
-        public OutputStream getOutputStream() throws IOException {
-            return socket.getOutputStream();
-        }
+    // routing steps may block in isAvailable(), keep them off the providers' threads
+    // the route callbacks only start the next attempt, a few threads serve all connections
+    private static final ThreadPoolExecutor routeExecutor = new ThreadPoolExecutor(ROUTE_THREADS, ROUTE_THREADS,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new Server.DaemonThreadFactory("route"));
+    static {
+        routeExecutor.allowCoreThreadTimeOut(true);
+    }
 
-        @Override
-        public void close() throws IOException {
-            socket.close();
-        }
+    private static class Route {
+        private final TransportProvider provider;
+        private final TransportProvider.Transport transport;
 
-        @Override
-        public String toString() {
-            return socket.toString();
+        private Route(TransportProvider provider, TransportProvider.Transport transport) {
+            this.provider = provider;
+            this.transport = transport;
         }
     }
 
-    private static TransportProvider directTransportProvider = new DirectTransportProvider();
-    private static HashMap<String, TransportProvider> proxyProviders = new LinkedHashMap<>();
-    private static Map<String, TransportProvider> preferredProviders = new ConcurrentHashMap<>();
+    /**
+     * Connect through the next available provider, moving on to the following one as soon as a connect fails.
+     * The future completes with null when no provider is left.
+     */
+    private static CompletableFuture<Route> connect(final Iterator<TransportProvider> providers, final String host,
+                                                    final int port, final Map<String, Throwable> errors) {
+        while (providers.hasNext()) {
+            final TransportProvider provider = providers.next();
+            if (!provider.isAvailable()) {
+                continue;
+            }
 
-    public static void addProxy(TransportProvider transportProvider) {
-        proxyProviders.put(transportProvider.getName(), transportProvider);
+            logger.debug("try <{}> to {}:{}", provider.getName(), host, port);
+            final ProxyEvents.ConnectEvent event = new ProxyEvents.ConnectEvent();
+            event.begin();
+            return provider.connectAsync(host, port, TIMEOUT).handleAsync((transport, e) -> {
+                Throwable error = e instanceof CompletionException ? e.getCause() : e;
+                event.end();
+                if (event.shouldCommit()) {
+                    event.provider = provider.getName();
+                    event.host = host;
+                    event.port = port;
+                    event.outcome = error == null ? "connected" : error.toString();
+                    event.commit();
+                }
+
+                if (error == null) {
+                    return CompletableFuture.completedFuture(new Route(provider, transport));
+                }
+                errors.put(provider.getName(), error);
+                preferredProviders.remove(host, provider);
+                return connect(providers, host, port, errors);
+            }, routeExecutor).thenCompose(route -> route);
+        }
+        return CompletableFuture.completedFuture(null);
     }
 
-    public static void setPreferredProxy(String host, String proxyName) {
-        TransportProvider transportProvider = proxyProviders.get(proxyName);
-        if (transportProvider != null) {
-            preferredProviders.put(host, transportProvider);
+    private static boolean isDirectFailed(String host) {
+        Long expires = directFailures.get(host);
+        if (expires == null) {
+            return false;
         }
+        if (expires <= System.currentTimeMillis()) {
+            directFailures.remove(host, expires);
+            return false;
+        }
+        return true;
     }
 
-    private static final int TIMEOUT = 5000;
     public static void proxy(Socket socket, String host, int port, boolean tryDirectConnection) throws IOException {
         boolean requireResponse = port == 80; // http connection should have response // handle gfw reset
-        Piper piper = new Piper(new SocketTransport(socket));
+        Piper piper = new Piper(socket, host, port);
 
-        Map<String, IOException> errors = new LinkedHashMap<>();
+        Tunnels.Tunnel tunnel = Tunnels.open(String.valueOf(socket.getRemoteSocketAddress()), host + ":" + port, piper);
+        piper.tunnel = tunnel;
+        Trace.tunnel(socket, tunnel);
+        try {
+            Map<String, Throwable> errors = Collections.synchronizedMap(new LinkedHashMap<String, Throwable>());
 
-        TransportProvider preferredProvider = preferredProviders.get(host);
-        if (preferredProvider != null && preferredProvider.isAvailable()) {
-            try {
-                logger.debug("try preferred proxy <{}> to {}:{}", preferredProvider.getName(), host, port);
-                TransportProvider.Transport proxyTransport = preferredProvider.connect(host, port, TIMEOUT);
-                try {
-                    if (piper.pipe(proxyTransport) || !requireResponse) {
-                        return;
-                    }
-                } finally {
-                    proxyTransport.close();
-                }
-            } catch (IOException e) {
-                errors.put(preferredProvider.getName(), e);
+            List<TransportProvider> providers = new ArrayList<>();
+            TransportProvider preferredProvider = preferredProviders.get(host);
+            if (preferredProvider != null) {
+                providers.add(preferredProvider);
             }
-            preferredProviders.remove(host);
-        }
-
-        if (tryDirectConnection) {
-            try {
-                logger.debug("try direct connection to {}:{}", host, port);
-                TransportProvider.Transport proxyTransport = directTransportProvider.connect(host, port, TIMEOUT);
-                try {
-                    if (piper.pipe(proxyTransport) || !requireResponse) {
-                        return;
-                    }
-                } finally {
-                    proxyTransport.close();
+            boolean directFailed = isDirectFailed(host);
+            if (tryDirectConnection && !directFailed) {
+                providers.add(directTransportProvider);
+            }
+            for (TransportProvider proxyProvider : proxyProviders.values()) {
+                if (!proxyProvider.equals(preferredProvider)) {
+                    providers.add(proxyProvider);
                 }
-            } catch (IOException e) {
-                errors.put("direct", e);
             }
-        }
-
-        for(TransportProvider proxyProvider: proxyProviders.values()) {
-            if (!proxyProvider.isAvailable() || proxyProvider.equals(preferredProvider)) {
-                continue;
+            if (tryDirectConnection && directFailed) {
+                providers.add(directTransportProvider);
             }
 
-            try {
-                logger.debug("try proxy <{}> to {}:{}", proxyProvider.getName(), host, port);
-                TransportProvider.Transport proxyTransport = proxyProvider.connect(host, port, TIMEOUT);
-                preferredProviders.put(host, proxyProvider);
+            Iterator<TransportProvider> iterator = providers.iterator();
+            Route route;
+            while ((route = connect(iterator, host, port, errors).join()) != null) {
+                if (route.provider != directTransportProvider) {
+                    preferredProviders.put(host, route.provider);
+                }
                 try {
-                    if (piper.pipe(proxyTransport) || !requireResponse) {
+                    if (piper.pipe(route.provider.getName(), route.transport)) {
+                        if (route.provider == directTransportProvider) {
+                            directFailures.remove(host);
+                        }
+                        return;
+                    }
+                    if (!requireResponse && !piper.isTls()) {
                         return;
                     }
                 } finally {
-                    proxyTransport.close();
+                    route.transport.close();
+                }
+                if (route.provider == directTransportProvider) {
+                    directFailures.put(host, System.currentTimeMillis() + DIRECT_FAILURE_TTL);
+                } else {
+                    preferredProviders.remove(host, route.provider);
                 }
-                preferredProviders.remove(host);
-            } catch (IOException e) {
-                errors.put(proxyProvider.getName(), e);
             }
-        }
 
-        logger.error("no proxy to {}:{}", host, port);
-        if (logger.isDebugEnabled()) {
-            for (Map.Entry<String, IOException> entry : errors.entrySet()) {
-                logger.debug("connection : " + entry.getKey() + " error:", entry.getValue());
+            logger.error("no proxy to {}:{}", host, port);
+            if (logger.isDebugEnabled()) {
+                for (Map.Entry<String, Throwable> entry : errors.entrySet()) {
+                    logger.debug("connection : " + entry.getKey() + " error:", entry.getValue());
+                }
             }
+        } finally {
+            Tunnels.close(tunnel);
         }
     }
 
-    private static class Piper {
+    private static class Piper implements Closeable {
+        private static final int TLS_RESPONSE_TIMEOUT = 5000;
+        private static final int TLS_POLL_TIMEOUT = 200;
+        private static final int TLS_HEADER_SIZE = 6;
+
+        private Socket socket;
         private TransportProvider.Transport localTransport;
+        private String host;
+        private int port;
+        private ProxyEvents.FirstByteEvent firstByteEvent;
         private long lastReadTime = 0;
         private boolean running = false;
         private ByteArrayOutputStream buf = new ByteArrayOutputStream();
         private long[] size = new long[]{0, 0};
-        private Piper(TransportProvider.Transport localTransport) {
-            this.localTransport = localTransport;
+        private volatile boolean tls = false;
+        private long responseDeadline;
+        private volatile int soTimeout;
+        private ByteArrayOutputStream response;
+        private volatile TransportProvider.Transport proxyTransport;
+        private Tunnels.Tunnel tunnel;
+        private volatile boolean killed = false;
+        private Piper(Socket socket, String host, int port) {
+            this.socket = socket;
+            this.localTransport = new SocketTransport(socket);
+            this.host = host;
+            this.port = port;
+        }
+
+        public boolean isTls() {
+            return tls;
+        }
+
+        // record type handshake, major version 3, handshake type client hello
+        private static boolean isClientHello(byte[] data, int len) {
+            return len >= 2 && data[0] == 0x16 && data[1] == 0x03 && (len < TLS_HEADER_SIZE || data[5] == 0x01);
+        }
+
+        // major version 3, record type handshake with handshake type server hello, or record type alert
+        private static boolean isServerResponse(byte[] data) {
+            return data[1] == 0x03 && (data[0] == 0x16 && data[5] == 0x02 || data[0] == 0x15);
+        }
+
+        /**
+         * The client is waiting for the server hello, poll the client socket more often to give up in time.
+         */
+        private void awaitResponse() {
+            responseDeadline = System.currentTimeMillis() + TLS_RESPONSE_TIMEOUT;
+            try {
+                soTimeout = socket.getSoTimeout();
+                socket.setSoTimeout(TLS_POLL_TIMEOUT);
+            } catch (SocketException ignore) {
+            }
+        }
+
+        private void restoreTimeout() {
+            try {
+                socket.setSoTimeout(soTimeout);
+            } catch (SocketException ignore) {
+            }
         }
 
-        public boolean pipe(final TransportProvider.Transport proxyTransport) {
+        /**
+         * Kill the tunnel from the admin interfaces.
+         */
+        @Override
+        public void close() throws IOException {
+            killed = true;
+            running = false;
+            TransportProvider.Transport proxyTransport = this.proxyTransport;
+            if (proxyTransport != null) {
+                proxyTransport.close();
+            }
+            localTransport.close();
+        }
+
+        public boolean pipe(String provider, final TransportProvider.Transport proxyTransport) {
             if (size[1] > 0) {
                 logger.error("pipe: {} --> {} is in a error state", localTransport, proxyTransport);
                 throw new RuntimeException("pipe: " + localTransport + " --> " + proxyTransport + " is in a error state");
             }
             running = true;
+            this.proxyTransport = proxyTransport;
+            tunnel.provider = provider;
+            tunnel.session = proxyTransport.getSession();
+            Trace.route(socket, provider);
+            response = new ByteArrayOutputStream();
+            if (tls) {
+                awaitResponse();
+            }
+            ProxyEvents.TunnelEvent tunnelEvent = new ProxyEvents.TunnelEvent();
+            tunnelEvent.begin();
+            firstByteEvent = new ProxyEvents.FirstByteEvent();
+            firstByteEvent.provider = provider;
+            firstByteEvent.host = host;
+            firstByteEvent.port = port;
+            firstByteEvent.begin();
             Thread thread = new Thread(new Runnable() {
                 @Override
                 public void run() {
@@ -178,7 +290,29 @@ public class ProxyService {
 
             logger.debug("pipe: {} --> {} OUT:{} IN:{}", localTransport, proxyTransport, size[0], size[1]);
 
-            return size[0] == 0 || size[1] > 0;
+            tunnelEvent.end();
+            if (tunnelEvent.shouldCommit()) {
+                tunnelEvent.provider = provider;
+                tunnelEvent.host = host;
+                tunnelEvent.port = port;
+                tunnelEvent.bytesOut = size[0];
+                tunnelEvent.bytesIn = size[1];
+                tunnelEvent.commit();
+            }
+
+            if (size[0] == 0 || size[1] > 0 || killed) {
+                return true;
+            }
+
+            if (tls) {
+                restoreTimeout();
+            }
+            try {
+                // the peer must stop before the next pipe starts
+                thread.join(1000);
+            } catch (InterruptedException ignore) {
+            }
+            return false;
         }
 
         private static final int BUFF_SIZE = 4096;
@@ -207,23 +341,54 @@ public class ProxyService {
 
                     if (len > 0) {
                         lastReadTime = System.currentTimeMillis();
+                        tunnel.lastActive = lastReadTime;
+                        byte[] data = buff;
                         if(localTransport.equals(from)) {
+                            if (size[0] == 0 && size[1] == 0 && isClientHello(buff, len)) {
+                                tls = true;
+                                awaitResponse();
+                            }
                             if (size[1] == 0) {
                                 buf.write(buff, 0, len);
                             }
                             size[0] += len;
+                            tunnel.bytesOut = size[0];
                         } else {
+                            if (size[1] == 0 && tls) {
+                                // hold the response until it is known to be a server hello or alert
+                                response.write(buff, 0, len);
+                                if (response.size() < TLS_HEADER_SIZE) {
+                                    continue;
+                                }
+                                data = response.toByteArray();
+                                len = data.length;
+                                if (!isServerResponse(data)) {
+                                    logger.debug("pipe: {} --> {} no TLS server response", from, to);
+                                    break;
+                                }
+                                restoreTimeout();
+                            }
+                            if (size[1] == 0) {
+                                firstByteEvent.commit();
+                            }
                             size[1] += len;
+                            tunnel.bytesIn = size[1];
                         }
-                        out.write(buff, 0, len);
+                        out.write(data, 0, len);
                         out.flush();
                     } else {
+                        if (tls && size[1] == 0 && localTransport.equals(from)
+                                && System.currentTimeMillis() > responseDeadline) {
+                            logger.debug("pipe: {} --> {} no TLS response in {} ms", from, to, TLS_RESPONSE_TIMEOUT);
+                            break;
+                        }
                         if(System.currentTimeMillis() - lastReadTime > 10 * 60 * 1000) {
                             break;
                         }
                     }
                 }
-            } catch (SocketException e) {
+            } catch (SocketException | ClosedChannelException e) {
+                // channel sockets from Connector fail with AsynchronousCloseException when the other side closes
                 logger.debug("pipe closed: " + from + " --> " + to);
             } catch (IOException e) {
                 logger.error("pipe error: " + from + " --> " + to, e);
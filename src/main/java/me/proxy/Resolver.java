@@ -0,0 +1,186 @@
+package me.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous host name resolver with a bounded cache.
+ *
+ * Lookups run on a small pool and concurrent lookups of the same name share one query. Java does not expose the
+ * record TTL, so results, including failures, are cached as long as the JVM's own cache keeps them
+ * (networkaddress.cache.ttl and networkaddress.cache.negative.ttl, at most MAX_TTL); names which are used often
+ * are refreshed in background shortly before they expire, so the connect path does not wait for them.
+ */
+class Resolver {
+    static Logger logger = LoggerFactory.getLogger(Resolver.class);
+
+    private static final int MAX_ENTRIES = 4096;
+    private static final int PREFETCH_HITS = 3;
+    private static final long MAX_TTL = 5 * 60 * 1000;
+
+    // the JVM's defaults without a security manager
+    private static final long DEFAULT_TTL = 30 * 1000;
+    private static final long DEFAULT_NEGATIVE_TTL = 10 * 1000;
+
+    private static class Entry {
+        private final InetAddress[] addresses;
+        private final UnknownHostException error;
+        private final long created;
+        private final long expires;
+        private final AtomicInteger hits = new AtomicInteger(0);
+        private volatile boolean refreshing = false;
+
+        private Entry(InetAddress[] addresses, UnknownHostException error, long ttl) {
+            this.addresses = addresses;
+            this.error = error;
+            this.created = System.currentTimeMillis();
+            this.expires = created + ttl;
+        }
+    }
+
+    private final long ttl;
+    private final long negativeTtl;
+    private final ExecutorService executor;
+    private final Map<String, Entry> cache;
+    private final Map<String, CompletableFuture<Entry>> lookups = new ConcurrentHashMap<>();
+
+    Resolver(int threads) {
+        this.ttl = cacheTtl("networkaddress.cache.ttl", "sun.net.inetaddr.ttl", DEFAULT_TTL);
+        this.negativeTtl = cacheTtl("networkaddress.cache.negative.ttl", "sun.net.inetaddr.negative.ttl",
+                DEFAULT_NEGATIVE_TTL);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                                new LinkedBlockingQueue<Runnable>(),
+                                                new Server.DaemonThreadFactory("resolver"));
+        this.cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Lifetime in milliseconds from the security property, or the older system property; a negative value caches
+     * forever and is capped to MAX_TTL.
+     */
+    private static long cacheTtl(String property, String systemProperty, long defaultTtl) {
+        String value = Security.getProperty(property);
+        if (value == null) {
+            value = System.getProperty(systemProperty);
+        }
+        if (value == null) {
+            return defaultTtl;
+        }
+        try {
+            long seconds = Long.parseLong(value.trim());
+            return seconds < 0 ? MAX_TTL : Math.min(seconds * 1000, MAX_TTL);
+        } catch (NumberFormatException e) {
+            return defaultTtl;
+        }
+    }
+
+    /**
+     * Resolve all addresses of the host, the future is already completed if the host is cached.
+     */
+    CompletableFuture<InetAddress[]> resolveAsync(String host) {
+        CompletableFuture<InetAddress[]> result = new CompletableFuture<>();
+        if (isLiteral(host)) {
+            try {
+                result.complete(InetAddress.getAllByName(host));
+            } catch (UnknownHostException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(host);
+        }
+
+        long now = System.currentTimeMillis();
+        if (entry == null || entry.expires <= now) {
+            lookup(host).whenComplete((e, t) -> complete(result, e));
+            return result;
+        }
+
+        if (entry.hits.incrementAndGet() >= PREFETCH_HITS && !entry.refreshing
+                && (entry.expires - now) * 5 < entry.expires - entry.created) {
+            entry.refreshing = true;
+            logger.debug("prefetch {}", host);
+            lookup(host);
+        }
+        complete(result, entry);
+        return result;
+    }
+
+    private static void complete(CompletableFuture<InetAddress[]> result, Entry entry) {
+        if (entry.error != null) {
+            result.completeExceptionally(entry.error);
+        } else {
+            result.complete(entry.addresses);
+        }
+    }
+
+    // dotted quad IPv4 or IPv6, host names never contain ':'
+    private static boolean isLiteral(String host) {
+        if (host.isEmpty() || host.indexOf(':') >= 0) {
+            return true;
+        }
+        String[] parts = host.split("\\.", -1);
+        if (parts.length != 4) {
+            return false;
+        }
+        for (String part : parts) {
+            if (part.isEmpty() || part.length() > 3) {
+                return false;
+            }
+            for (int i = 0; i < part.length(); i++) {
+                if (!Character.isDigit(part.charAt(i))) {
+                    return false;
+                }
+            }
+            if (Integer.parseInt(part) > 255) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private CompletableFuture<Entry> lookup(final String host) {
+        CompletableFuture<Entry> future = new CompletableFuture<>();
+        CompletableFuture<Entry> pending = lookups.putIfAbsent(host, future);
+        if (pending != null) {
+            return pending;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry;
+                try {
+                    entry = new Entry(InetAddress.getAllByName(host), null, ttl);
+                } catch (UnknownHostException e) {
+                    entry = new Entry(null, e, negativeTtl);
+                } catch (Exception e) {
+                    UnknownHostException error = new UnknownHostException(host + ": " + e.getMessage());
+                    entry = new Entry(null, error, negativeTtl);
+                }
+                synchronized (cache) {
+                    cache.put(host, entry);
+                }
+                lookups.remove(host);
+                future.complete(entry);
+            }
+        });
+        return future;
+    }
+}
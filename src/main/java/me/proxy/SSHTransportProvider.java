@@ -10,11 +10,17 @@ import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class SSHTransportProvider implements TransportProvider {
@@ -65,6 +71,7 @@ public class SSHTransportProvider implements TransportProvider {
     }
 
     Session currentSession = null;
+    private volatile boolean ready = false;
     private String host;
     private int port;
     private String user;
@@ -74,6 +81,14 @@ public class SSHTransportProvider implements TransportProvider {
 
     private Map<Session, List<ChannelTransport>> sessions;
 
+    // channel open blocks until the server answers, keep it off the callers' threads
+    private static final int CHANNEL_THREADS = 32;
+    private static final ThreadPoolExecutor channelExecutor = new ThreadPoolExecutor(CHANNEL_THREADS, CHANNEL_THREADS,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new Server.DaemonThreadFactory("ssh-channel"));
+    static {
+        channelExecutor.allowCoreThreadTimeOut(true);
+    }
+
     public SSHTransportProvider(URI uri) {
         this("ssh@" + uri.getHost(), uri);
     }
@@ -93,10 +108,6 @@ public class SSHTransportProvider implements TransportProvider {
         this.password = parts.length == 2?parts[1]:"";
 
         this.sessions = new ConcurrentHashMap<>();
-        try {
-            getSession(true);
-        } catch (JSchException ignore) {
-        }
 
         initJMX();
     }
@@ -164,13 +175,28 @@ public class SSHTransportProvider implements TransportProvider {
     }
 
     private Session createSession() throws JSchException {
-        Session session = jsch.getSession(user, host, port);
-        session.setPassword(password);
-        session.setTimeout(15000);
-        session.setDaemonThread(true);
-        session.connect(3000);
-        sessions.put(session, new LinkedList<ChannelTransport>());
-        return session;
+        ProxyEvents.SessionEvent event = new ProxyEvents.SessionEvent();
+        event.begin();
+        String outcome = "connected";
+        try {
+            Session session = jsch.getSession(user, host, port);
+            session.setPassword(password);
+            session.setTimeout(15000);
+            session.setDaemonThread(true);
+            session.connect(3000);
+            sessions.put(session, new LinkedList<ChannelTransport>());
+            return session;
+        } catch (JSchException e) {
+            outcome = e.toString();
+            throw e;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.provider = name;
+                event.outcome = outcome;
+                event.commit();
+            }
+        }
     }
 
     private synchronized Session getSession(boolean forceCreate) throws JSchException {
@@ -180,6 +206,7 @@ public class SSHTransportProvider implements TransportProvider {
 
         Session oldSession = currentSession;
         currentSession = createSession();
+        ready = true;
         if (oldSession != null) {
             tryCloseSession(oldSession);
         }
@@ -188,17 +215,38 @@ public class SSHTransportProvider implements TransportProvider {
     }
 
     private boolean isServerAvailable() {
+        ProxyEvents.ProbeEvent event = new ProxyEvents.ProbeEvent();
+        event.begin();
+        boolean available = false;
         Socket s = new Socket();
         try {
             s.connect(new InetSocketAddress(host, port), 3000);
             s.close();
-            return true;
+            available = true;
         } catch (IOException ignore) {
         }
-        return false;
+        event.end();
+        if (event.shouldCommit()) {
+            event.provider = name;
+            event.available = available;
+            event.commit();
+        }
+        return available;
+    }
+
+    @Override
+    public void init() throws IOException {
+        try {
+            getSession(false);
+        } catch (JSchException e) {
+            throw new IOException(e);
+        }
     }
 
     public boolean isAvailable() {
+        if (!ready) {
+            return false;
+        }
         if (currentSession != null && currentSession.isConnected()) {
             return true;
         } else {
@@ -232,6 +280,36 @@ public class SSHTransportProvider implements TransportProvider {
         }
     }
 
+    @Override
+    public CompletableFuture<Transport> connectAsync(final String host, final int port, final int timeout) {
+        final CompletableFuture<Transport> future = new CompletableFuture<>();
+        // the time waiting for a channel thread counts against the timeout
+        final long deadline = System.currentTimeMillis() + timeout;
+        final Future<?> task = channelExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                int remaining = (int) (deadline - System.currentTimeMillis());
+                if (remaining <= 0) {
+                    future.completeExceptionally(new SocketTimeoutException("connect " + host + ":" + port + " timeout"));
+                    return;
+                }
+                try {
+                    Transport transport = connect(host, port, remaining);
+                    if (!future.complete(transport)) {
+                        transport.close();
+                    }
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        future.whenComplete((transport, e) -> task.cancel(false));
+        return future;
+    }
+
     static class ChannelTransport implements Transport {
         private Channel channel;
         private String host;
@@ -259,6 +337,16 @@ public class SSHTransportProvider implements TransportProvider {
             provider.closeSocket(this);
         }
 
+        @Override
+        public String getSession() {
+            try {
+                Session session = channel.getSession();
+                return provider.getName() + "/" + Integer.toHexString(System.identityHashCode(session));
+            } catch (JSchException e) {
+                return null;
+            }
+        }
+
         @Override
         public String toString() {
             return "StreamForwarder[host=" + host +
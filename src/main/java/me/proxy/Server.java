@@ -4,8 +4,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
@@ -18,10 +27,33 @@ public class Server {
         void serve(Socket socket) throws Exception;
     }
 
-    private ExecutorService executor;
+    // SO_REUSEPORT is only defined since java 9, look it up at runtime
+    static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (Exception ignore) {
+            return null;
+        }
+    }
+
+    // before java 13 the socket adaptor of a channel holds one lock for timed reads and writes, a client socket
+    // accepted from a channel could not be written while its read waits for the timeout
+    static final boolean CHANNEL_SOCKET_LOCKS = javaVersion() < 13;
+
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        try {
+            return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+        } catch (NumberFormatException e) {
+            return 8;
+        }
+    }
+
     private Service service;
-    private ServerSocket serverSocket;
-    private Thread thread;
+    private List<Acceptor> acceptors = new ArrayList<>();
     private boolean running = false;
     private Lock lock = new ReentrantLock();
     private int corePoolSize;
@@ -30,13 +62,67 @@ public class Server {
         this(new ServerSocket(port), service, corePoolSize, maximumPoolSize);
     }
 
+    /**
+     * Listen with several acceptors, each one with its own accept thread and worker pool. The sockets are
+     * bound with SO_REUSEPORT so the kernel spreads the connections; if it is not supported, or the runtime is
+     * older than java 13, the acceptors share a single server socket.
+     */
+    public Server(int port, Service service, int corePoolSize, int maximumPoolSize, int acceptors) throws IOException {
+        this(service, corePoolSize, maximumPoolSize);
+        if (acceptors <= 1) {
+            this.acceptors.add(new Acceptor(new ServerSocket(port)));
+            return;
+        }
+
+        List<ServerSocket> serverSockets = CHANNEL_SOCKET_LOCKS ? null : bindReusePort(port, acceptors);
+        if (serverSockets == null) {
+            logger.warn("SO_REUSEPORT is {}, {} acceptors share one socket at: {}",
+                    CHANNEL_SOCKET_LOCKS ? "only used since java 13" : "not supported", acceptors, port);
+            ServerSocket serverSocket = new ServerSocket(port);
+            for (int i = 0; i < acceptors; i++) {
+                this.acceptors.add(new Acceptor(serverSocket));
+            }
+        } else {
+            for (ServerSocket serverSocket : serverSockets) {
+                this.acceptors.add(new Acceptor(serverSocket));
+            }
+        }
+    }
+
     public Server(ServerSocket serverSocket, Service service, int corePoolSize, int maximumPoolSize) {
-        this.serverSocket = serverSocket;
+        this(service, corePoolSize, maximumPoolSize);
+        this.acceptors.add(new Acceptor(serverSocket));
+    }
+
+    private Server(Service service, int corePoolSize, int maximumPoolSize) {
         this.service = service;
         this.corePoolSize = corePoolSize;
         this.maximumPoolSize = maximumPoolSize;
     }
 
+    private static List<ServerSocket> bindReusePort(int port, int count) throws IOException {
+        List<ServerSocket> serverSockets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            if (SO_REUSEPORT == null || !channel.supportedOptions().contains(SO_REUSEPORT)) {
+                channel.close();
+                return null;
+            }
+            try {
+                channel.setOption(SO_REUSEPORT, true);
+                channel.bind(new InetSocketAddress(port));
+            } catch (IOException e) {
+                channel.close();
+                for (ServerSocket serverSocket : serverSockets) {
+                    serverSocket.close();
+                }
+                throw e;
+            }
+            serverSockets.add(channel.socket());
+        }
+        return serverSockets;
+    }
+
     public void start() {
         lock.lock();
         try {
@@ -47,38 +133,10 @@ public class Server {
         } finally {
             lock.unlock();
         }
-        executor = new ThreadPoolExecutor(corePoolSize, maximumPoolSize, 0L, TimeUnit.MILLISECONDS,
-                                            new LinkedBlockingQueue<Runnable>(),
-                                            new DaemonThreadFactory("server"));
-        thread = new Thread(new Runnable() {
-            public void run() {
-                while(running) {
-                    try {
-                        final Socket socket = serverSocket.accept();
-                        executor.submit(new Runnable() {
-                            public void run() {
-                                try {
-                                    service.serve(socket);
-                                } catch (Exception e) {
-                                    logger.error("work thread error", e);
-                                } finally {
-                                    try {
-                                        socket.close();
-                                    } catch (IOException ignore) {
-                                    }
-                                }
-                            }
-                        });
-                    } catch (Exception e) {
-                        logger.error("main thread error", e);
-                    }
-                }
-            }
-        });
-        if(Thread.currentThread().getId() != 1) {
-            thread.setDaemon(true);
+        int count = acceptors.size();
+        for (Acceptor acceptor : acceptors) {
+            acceptor.start((corePoolSize + count - 1) / count, (maximumPoolSize + count - 1) / count);
         }
-        thread.start();
     }
 
     public void stop() throws IOException {
@@ -92,18 +150,79 @@ public class Server {
             lock.unlock();
         }
 
-        try {
-            executor.awaitTermination(60, TimeUnit.SECONDS);
-        } catch (InterruptedException ignore) {
+        // stop accepting, then give the workers of all the acceptors the same 60 seconds to finish
+        Set<ServerSocket> serverSockets = Collections.newSetFromMap(new IdentityHashMap<ServerSocket, Boolean>());
+        for (Acceptor acceptor : acceptors) {
+            acceptor.executor.shutdown();
+            if (serverSockets.add(acceptor.serverSocket)) {
+                acceptor.serverSocket.close();
+            }
         }
-        executor.shutdownNow();
-        serverSocket.close();
-        try {
-            thread.join(60 * 1000);
-        } catch (InterruptedException ignore) {
+        long deadline = System.currentTimeMillis() + 60 * 1000;
+        for (Acceptor acceptor : acceptors) {
+            try {
+                acceptor.executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignore) {
+            }
+            acceptor.executor.shutdownNow();
+        }
+        for (Acceptor acceptor : acceptors) {
+            try {
+                acceptor.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException ignore) {
+            }
         }
     }
 
+    private class Acceptor {
+        private ExecutorService executor;
+        private ServerSocket serverSocket;
+        private Thread thread;
+
+        private Acceptor(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+        }
+
+        private void start(int corePoolSize, int maximumPoolSize) {
+            executor = new ThreadPoolExecutor(corePoolSize, maximumPoolSize, 0L, TimeUnit.MILLISECONDS,
+                                                new LinkedBlockingQueue<Runnable>(),
+                                                new DaemonThreadFactory("server"));
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    while(running) {
+                        try {
+                            final Socket socket = serverSocket.accept();
+                            Trace.accept(socket);
+                            executor.submit(new Runnable() {
+                                public void run() {
+                                    try {
+                                        service.serve(socket);
+                                    } catch (Exception e) {
+                                        logger.error("work thread error", e);
+                                    } finally {
+                                        try {
+                                            socket.close();
+                                        } catch (IOException ignore) {
+                                        }
+                                        Trace.close(socket);
+                                    }
+                                }
+                            });
+                        } catch (Exception e) {
+                            if (!running) {
+                                break;
+                            }
+                            logger.error("main thread error", e);
+                        }
+                    }
+                }
+            });
+            if(Thread.currentThread().getId() != 1) {
+                thread.setDaemon(true);
+            }
+            thread.start();
+        }
+    }
 
     static class DaemonThreadFactory implements ThreadFactory {
         private static final AtomicInteger poolNumber = new AtomicInteger(1);
@@ -0,0 +1,87 @@
+package me.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+class SocketTransport implements TransportProvider.Transport {
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    public SocketTransport(Socket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Transport over a connected channel in blocking mode.
+     *
+     * Before java 13 the streams of the channel's socket adaptor share the channel's blocking lock, a write
+     * waits for a read in progress on the other pipe thread. The channel's own read and write have separate locks.
+     */
+    public SocketTransport(final SocketChannel channel) {
+        this.socket = channel.socket();
+        this.in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int len = read(b, 0, 1);
+                return len < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+        this.out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return in != null ? in : socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return out != null ? out : socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    @Override
+    public String toString() {
+        return socket.toString();
+    }
+}
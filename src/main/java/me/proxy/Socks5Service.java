@@ -31,7 +31,7 @@ public class Socks5Service implements Server.Service {
         this.forceProxy = forceProxy;
     }
 
-    private void handleService(Socket socket) throws IOException {
+    private void handleService(Socket socket, ProxyEvents.HandshakeEvent event) throws IOException {
         DataInputStream in = new DataInputStream(socket.getInputStream());
         byte version = in.readByte();
         if (version != 0x05) {
@@ -77,12 +77,21 @@ public class Socks5Service implements Server.Service {
         }
 
         int port = in.readUnsignedShort();
+        Trace.destination(socket, host, port);
 
         //CONNECT REPLY
         OutputStream out = socket.getOutputStream();
         out.write(new byte[]{0x05, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, -1, -1});
         out.flush();
 
+        event.end();
+        if (event.shouldCommit()) {
+            event.client = String.valueOf(socket.getRemoteSocketAddress());
+            event.host = host;
+            event.port = port;
+            event.commit();
+        }
+
         MDC.put("request", atomicIndex.getAndIncrement() + "-" + host + ":" + port);
         logger.debug("Process socks5 connect request to {} {}", host, port);
         try {
@@ -123,7 +132,9 @@ public class Socks5Service implements Server.Service {
             e.printStackTrace();
         }
 
+        ProxyEvents.HandshakeEvent event = new ProxyEvents.HandshakeEvent();
+        event.begin();
         handshake(socket);
-        handleService(socket);
+        handleService(socket, event);
     }
 }
@@ -0,0 +1,89 @@
+package me.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+public class Socks5TransportProvider extends ChainTransportProvider {
+    public static final TransportProviderFactory factory =
+            new TransportProviderFactory() {
+                @Override
+                public TransportProvider create(URI proxyUri) {
+                    return new Socks5TransportProvider(proxyUri);
+                }
+            };
+
+    private static final byte METHOD_NO_AUTH = 0x00;
+    private static final byte METHOD_PASSWORD = 0x02;
+
+    public Socks5TransportProvider(URI uri) {
+        super("socks5", uri, 1080);
+    }
+
+    // greeting, authentication and connect request at once, as only one method is offered
+    @Override
+    protected byte[] request(String host, int port) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (user == null) {
+            out.write(new byte[]{0x05, 0x01, METHOD_NO_AUTH});
+        } else {
+            byte[] userData = user.getBytes(StandardCharsets.UTF_8);
+            byte[] passwordData = password.getBytes(StandardCharsets.UTF_8);
+            out.write(new byte[]{0x05, 0x01, METHOD_PASSWORD});
+            out.write(0x01);
+            out.write(userData.length);
+            out.write(userData);
+            out.write(passwordData.length);
+            out.write(passwordData);
+        }
+
+        byte[] hostData = host.getBytes(StandardCharsets.US_ASCII);
+        out.write(new byte[]{0x05, Socks5Service.CMD_CONNECT, 0x00, Socks5Service.ATYP_DOMAIN});
+        out.write(hostData.length);
+        out.write(hostData);
+        out.write(port >> 8);
+        out.write(port);
+        return out.toByteArray();
+    }
+
+    @Override
+    protected void response(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        if (in.readByte() != 0x05) {
+            throw new IOException("upstream is not a socks5 proxy");
+        }
+        byte method = in.readByte();
+        if (method == METHOD_PASSWORD) {
+            in.readByte();
+            if (in.readByte() != 0x00) {
+                throw new IOException("upstream authentication failed");
+            }
+        } else if (method != METHOD_NO_AUTH) {
+            throw new IOException("upstream refused the authentication method");
+        }
+
+        in.readByte();
+        byte reply = in.readByte();
+        if (reply != 0x00) {
+            throw new IOException("upstream connect failed: " + reply);
+        }
+        in.readByte();
+        switch (in.readByte()) {
+            case Socks5Service.ATYP_IPV4:
+                in.readFully(new byte[4]);
+                break;
+            case Socks5Service.ATYP_DOMAIN:
+                in.readFully(new byte[in.readUnsignedByte()]);
+                break;
+            case Socks5Service.ATYP_IPV6:
+                in.readFully(new byte[16]);
+                break;
+            default:
+                throw new IOException("unknown address type from upstream");
+        }
+        in.readUnsignedShort();
+    }
+}
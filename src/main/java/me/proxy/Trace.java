@@ -0,0 +1,305 @@
+package me.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recorder of the workload, replayed by TraceReplay.
+ *
+ * The trace is a header (magic, version, start time) followed by records of a type byte, the milliseconds since
+ * the start and the connection id:
+ * ACCEPT nothing more, DESTINATION destination hash and port, ROUTE provider name, BYTES direction and count,
+ * CLOSE nothing more.
+ * A connection is accepted and closed by the server, so the handshake time and the connections whose handshake
+ * failed, without DESTINATION, are recorded too. Destinations are hashed with a random salt, so they can be told
+ * apart but not recovered. Byte volumes are sampled from the connection's tunnel every SAMPLE_INTERVAL, the
+ * connection threads only queue the other records. When the recording stops, at the latest on shutdown, the
+ * connections still open get their last BYTES and a CLOSE record.
+ */
+public class Trace {
+    static Logger logger = LoggerFactory.getLogger(Trace.class);
+
+    static final int MAGIC = 0x53505452;
+    static final int VERSION = 2;
+
+    static final byte ACCEPT = 1;
+    static final byte DESTINATION = 2;
+    static final byte ROUTE = 3;
+    static final byte BYTES = 4;
+    static final byte CLOSE = 5;
+
+    static final byte IN = 0;
+    static final byte OUT = 1;
+
+    static final int SAMPLE_INTERVAL = 100;
+    private static final int STOP_TIMEOUT = 5000;
+
+    // queued to end the recording and to link a tunnel to its connection, never written
+    private static final byte STOP = 0;
+    private static final byte TUNNEL = -1;
+
+    private static volatile Trace trace;
+
+    private static class Record {
+        private final byte type;
+        private final long time;
+        private final long id;
+        private final Tunnels.Tunnel tunnel;
+        private final String name;
+        private final int port;
+
+        private Record(byte type, long id, Tunnels.Tunnel tunnel, String name, int port) {
+            this.type = type;
+            this.time = System.currentTimeMillis();
+            this.id = id;
+            this.tunnel = tunnel;
+            this.name = name;
+            this.port = port;
+        }
+    }
+
+    private static class Sample {
+        private final long id;
+        // null until the destination is connected
+        private Tunnels.Tunnel tunnel;
+        private long bytesIn = 0;
+        private long bytesOut = 0;
+
+        private Sample(long id) {
+            this.id = id;
+        }
+    }
+
+    private final DataOutputStream out;
+    private final long start;
+    private final byte[] salt = new byte[16];
+    private final BlockingQueue<Record> records = new LinkedBlockingQueue<>();
+    // ids of the connections accepted since the start, sockets compare by identity
+    private final Map<Socket, Long> connections = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong(0);
+    private final Map<Long, Sample> samples = new HashMap<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private Trace(File file) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        this.start = System.currentTimeMillis();
+        new SecureRandom().nextBytes(salt);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(start);
+    }
+
+    static synchronized void start(File file) throws IOException {
+        if (trace != null) {
+            return;
+        }
+        final Trace trace = new Trace(file);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                trace.loop();
+            }
+        }, "trace");
+        thread.setDaemon(true);
+        thread.start();
+        Trace.trace = trace;
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        }, "trace-stop"));
+    }
+
+    /**
+     * Close the tunnels still open in the trace and close the file, waiting for the records queued before.
+     */
+    static void stop() {
+        Trace trace;
+        synchronized (Trace.class) {
+            trace = Trace.trace;
+            if (trace == null) {
+                return;
+            }
+            Trace.trace = null;
+        }
+        trace.records.add(new Record(STOP, 0, null, null, 0));
+        try {
+            trace.stopped.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ignore) {
+        }
+    }
+
+    /**
+     * Queue a record of a connection accepted while recording, ignored for the others.
+     */
+    private static void add(Socket socket, byte type, Tunnels.Tunnel tunnel, String name, int port) {
+        Trace trace = Trace.trace;
+        if (trace == null) {
+            return;
+        }
+        Long id = type == CLOSE ? trace.connections.remove(socket) : trace.connections.get(socket);
+        if (id != null) {
+            trace.records.add(new Record(type, id, tunnel, name, port));
+        }
+    }
+
+    static void accept(Socket socket) {
+        Trace trace = Trace.trace;
+        if (trace != null) {
+            long id = trace.ids.incrementAndGet();
+            trace.connections.put(socket, id);
+            trace.records.add(new Record(ACCEPT, id, null, null, 0));
+        }
+    }
+
+    static void destination(Socket socket, String host, int port) {
+        add(socket, DESTINATION, null, host, port);
+    }
+
+    static void tunnel(Socket socket, Tunnels.Tunnel tunnel) {
+        add(socket, TUNNEL, tunnel, null, 0);
+    }
+
+    static void route(Socket socket, String provider) {
+        add(socket, ROUTE, null, provider, 0);
+    }
+
+    static void close(Socket socket) {
+        add(socket, CLOSE, null, null, 0);
+    }
+
+    private int hash(String host) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            byte[] data = digest.digest(host.getBytes(StandardCharsets.UTF_8));
+            return (data[0] & 0xff) << 24 | (data[1] & 0xff) << 16 | (data[2] & 0xff) << 8 | (data[3] & 0xff);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void writeHeader(byte type, long time, long id) throws IOException {
+        out.writeByte(type);
+        out.writeInt((int) (time - start));
+        out.writeLong(id);
+    }
+
+    private void writeBytes(long time, Sample sample) throws IOException {
+        if (sample.tunnel == null) {
+            return;
+        }
+        long bytesIn = sample.tunnel.bytesIn;
+        long bytesOut = sample.tunnel.bytesOut;
+        if (bytesIn > sample.bytesIn) {
+            writeHeader(BYTES, time, sample.id);
+            out.writeByte(IN);
+            out.writeInt((int) (bytesIn - sample.bytesIn));
+            sample.bytesIn = bytesIn;
+        }
+        if (bytesOut > sample.bytesOut) {
+            writeHeader(BYTES, time, sample.id);
+            out.writeByte(OUT);
+            out.writeInt((int) (bytesOut - sample.bytesOut));
+            sample.bytesOut = bytesOut;
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        switch (record.type) {
+            case ACCEPT:
+                samples.put(record.id, new Sample(record.id));
+                writeHeader(ACCEPT, record.time, record.id);
+                break;
+            case DESTINATION:
+                writeHeader(DESTINATION, record.time, record.id);
+                out.writeInt(hash(record.name));
+                out.writeShort(record.port);
+                break;
+            case TUNNEL: {
+                Sample sample = samples.get(record.id);
+                if (sample != null) {
+                    sample.tunnel = record.tunnel;
+                }
+                break;
+            }
+            case ROUTE:
+                writeHeader(ROUTE, record.time, record.id);
+                out.writeUTF(record.name);
+                break;
+            case CLOSE: {
+                Sample sample = samples.remove(record.id);
+                if (sample != null) {
+                    writeBytes(record.time, sample);
+                }
+                writeHeader(CLOSE, record.time, record.id);
+                break;
+            }
+        }
+    }
+
+    private void finish(long time) throws IOException {
+        for (Sample sample : samples.values()) {
+            writeBytes(time, sample);
+            writeHeader(CLOSE, time, sample.id);
+        }
+        samples.clear();
+        out.close();
+    }
+
+    private void loop() {
+        long nextSample = System.currentTimeMillis() + SAMPLE_INTERVAL;
+        while (true) {
+            try {
+                Record record = records.poll(Math.max(0, nextSample - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (record != null && record.type == STOP) {
+                    finish(record.time);
+                    stopped.countDown();
+                    return;
+                }
+                if (record != null) {
+                    write(record);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextSample) {
+                    for (Sample sample : samples.values()) {
+                        writeBytes(now, sample);
+                    }
+                    out.flush();
+                    nextSample = now + SAMPLE_INTERVAL;
+                }
+            } catch (Exception e) {
+                logger.error("trace error, stop recording", e);
+                Trace.trace = null;
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+                stopped.countDown();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package me.proxy;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replay a trace recorded with -trace against a local proxy instance.
+ *
+ * Every recorded destination is mapped to its own loopback address (127.x.y.z, so linux only) served by a
+ * stand-in origin. Each connection is opened to the proxy at its recorded accept time and sends the SOCKS request
+ * after the recorded handshake time; a connection whose handshake failed is opened and closed without one. The
+ * client and the origin then send the recorded byte volumes at the recorded times and close at the recorded
+ * duration, or at the end of the trace for a connection still open when it ended. All times are divided by -speed.
+ *
+ * Connections routed through a proxy in the trace are routed through the -upstream providers instead, e.g. an
+ * ssh:// provider pointing at a stand-in SSH server; without them everything goes direct. With -all every
+ * connection goes through the upstream providers, and the CPU time per GB relayed compares their cost. It is the
+ * CPU time of this process, so it includes the stand-in clients and origins: compare runs of the same trace.
+ */
+@Parameters(separators = "=")
+public class TraceReplay {
+    static Logger logger = LoggerFactory.getLogger(TraceReplay.class);
+
+    @Parameter(description = "trace file", required = true)
+    private List<String> files = new ArrayList<>();
+
+    @Parameter(names = "-speed", description = "replay speed, 2 replays twice as fast as recorded")
+    private double speed = 1;
+
+    @Parameter(names = "-upstream", description = "providers standing in for the recorded proxy routes")
+    private List<String> upstreams = new ArrayList<>();
+
+    @Parameter(names = "-all", description = "route every connection through the upstream providers")
+    private boolean all = false;
+
+    private static final int BUFF_SIZE = 16 * 1024;
+    // the last bytes are recorded at the close, the client waits for the origin's close to get them
+    private static final int CLOSE_WAIT = 1000;
+    private static final byte[] payload = new byte[BUFF_SIZE];
+
+    private static class Connection {
+        private final long id;
+        private final long arrival;
+        // since the arrival, -1 for a failed handshake
+        private long handshake = -1;
+        private int hash;
+        private String route;
+        private long close = -1;
+        private final List<long[]> in = new ArrayList<>();
+        private final List<long[]> out = new ArrayList<>();
+
+        private Connection(long id, long arrival) {
+            this.id = id;
+            this.arrival = arrival;
+        }
+
+        private String host() {
+            return "127." + ((hash >>> 16) & 0xff) + "." + ((hash >>> 8) & 0xff) + "." + (1 + (hash & 0xff) % 254);
+        }
+    }
+
+    private final Map<Long, Connection> connections = new LinkedHashMap<>();
+    private final Map<String, String> routes = new HashMap<>();
+    private final AtomicLong completed = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong handshakeFailed = new AtomicLong(0);
+    private final AtomicLong bytesIn = new AtomicLong(0);
+    private final AtomicLong bytesOut = new AtomicLong(0);
+    private final List<Long> firstBytes = Collections.synchronizedList(new ArrayList<Long>());
+    private long start;
+    private long startCpu;
+
+    void read(String file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != Trace.MAGIC || in.readInt() != Trace.VERSION) {
+                throw new IOException(file + " is not a trace");
+            }
+            in.readLong();
+
+            List<Connection> read = new ArrayList<>();
+            long end = 0;
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                long time = in.readInt();
+                long id = in.readLong();
+                end = Math.max(end, time);
+                Connection connection = connections.get(id);
+                switch (type) {
+                    case Trace.ACCEPT:
+                        connection = new Connection(id, time);
+                        connections.put(id, connection);
+                        read.add(connection);
+                        break;
+                    case Trace.DESTINATION: {
+                        int hash = in.readInt();
+                        // every destination is served by the stand-in origin's port
+                        in.readUnsignedShort();
+                        if (connection != null) {
+                            connection.hash = hash;
+                            connection.handshake = time - connection.arrival;
+                        }
+                        break;
+                    }
+                    case Trace.ROUTE: {
+                        String route = in.readUTF();
+                        if (connection != null) {
+                            connection.route = route;
+                        }
+                        break;
+                    }
+                    case Trace.BYTES: {
+                        byte direction = in.readByte();
+                        long count = in.readInt();
+                        if (connection != null) {
+                            (direction == Trace.IN ? connection.in : connection.out)
+                                    .add(new long[]{time - connection.arrival, count});
+                        }
+                        break;
+                    }
+                    case Trace.CLOSE:
+                        if (connection != null) {
+                            connection.close = time - connection.arrival;
+                        }
+                        break;
+                    default:
+                        throw new IOException("unknown record " + type);
+                }
+            }
+
+            for (Connection connection : read) {
+                if (connection.close < 0) {
+                    connection.close = end - connection.arrival;
+                }
+            }
+        }
+    }
+
+    private void sleepUntil(long base, long offset) throws InterruptedException {
+        long delay = base + (long) (offset / speed) - System.currentTimeMillis();
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+
+    private void send(OutputStream out, List<long[]> timeline, long base, AtomicLong counter) throws IOException, InterruptedException {
+        for (long[] step : timeline) {
+            sleepUntil(base, step[0]);
+            long remaining = step[1];
+            while (remaining > 0) {
+                int len = (int) Math.min(remaining, BUFF_SIZE);
+                out.write(payload, 0, len);
+                remaining -= len;
+            }
+            out.flush();
+            counter.addAndGet(step[1]);
+        }
+    }
+
+    private Thread drain(final InputStream in, final long base, final boolean client) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buff = new byte[BUFF_SIZE];
+                try {
+                    int len = in.read(buff);
+                    if (len > 0 && client) {
+                        firstBytes.add(System.currentTimeMillis() - base);
+                    }
+                    while (len >= 0) {
+                        len = in.read(buff);
+                    }
+                } catch (IOException ignore) {
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void origin(final Socket socket) {
+        try {
+            long now = System.currentTimeMillis();
+            Connection connection = connections.get(new DataInputStream(socket.getInputStream()).readLong());
+            if (connection == null) {
+                return;
+            }
+            // the timelines start at the client's arrival
+            long base = now - (long) (connection.handshake / speed);
+            drain(socket.getInputStream(), base, false);
+            send(socket.getOutputStream(), connection.in, base, bytesIn);
+            sleepUntil(base, connection.close);
+        } catch (Exception e) {
+            logger.debug("origin error", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void client(Connection connection, int proxyPort, int originPort) {
+        long base = System.currentTimeMillis();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort)) {
+            if (connection.handshake < 0) {
+                sleepUntil(base, connection.close);
+                handshakeFailed.incrementAndGet();
+                return;
+            }
+            sleepUntil(base, connection.handshake);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            byte[] host = connection.host().getBytes(StandardCharsets.US_ASCII);
+            out.write(new byte[]{0x05, 0x01, 0x00});
+            out.write(new byte[]{0x05, Socks5Service.CMD_CONNECT, 0x00, Socks5Service.ATYP_DOMAIN, (byte) host.length});
+            out.write(host);
+            out.write(new byte[]{(byte) (originPort >> 8), (byte) originPort});
+            out.flush();
+            long request = System.currentTimeMillis();
+            in.readFully(new byte[2 + 10]);
+
+            new DataOutputStream(out).writeLong(connection.id);
+            Thread drain = drain(in, request, true);
+            send(out, connection.out, base, bytesOut);
+            sleepUntil(base, connection.close);
+            drain.join(CLOSE_WAIT);
+            completed.incrementAndGet();
+        } catch (Exception e) {
+            logger.debug("client error", e);
+            failed.incrementAndGet();
+        }
+    }
+
+    void run() throws Exception {
+        for (String file : files) {
+            read(file);
+        }
+        logger.info("Replay {} connections at speed {}", connections.size(), speed);
+
+        Application application = new Application();
+        List<String> names = new ArrayList<>();
+        for (String upstream : upstreams) {
+            TransportProvider provider = application.createProxy(upstream);
+            if (provider == null) {
+                throw new IllegalArgumentException("unknown upstream " + upstream);
+            }
+            provider.init();
+            ProxyService.addProxy(provider);
+            names.add(provider.getName());
+        }
+        for (Connection connection : connections.values()) {
+            if (all && !names.isEmpty()) {
+                connection.route = names.get((int) (connection.id % names.size()));
+                routes.put(connection.route, connection.route);
+            } else if (connection.route != null && !connection.route.equals("direct") && !names.isEmpty()
+                    && !routes.containsKey(connection.route)) {
+                routes.put(connection.route, names.get(routes.size() % names.size()));
+            }
+        }
+
+        final ServerSocket originSocket = new ServerSocket(0);
+        ServerSocket proxySocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        new Server(proxySocket, new Socks5Service(false), 50, 400).start();
+        final int proxyPort = proxySocket.getLocalPort();
+        final int originPort = originSocket.getLocalPort();
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        final Socket socket = originSocket.accept();
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                origin(socket);
+                            }
+                        });
+                        thread.setDaemon(true);
+                        thread.start();
+                    } catch (IOException e) {
+                        logger.error("origin accept error", e);
+                        return;
+                    }
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        final CountDownLatch done = new CountDownLatch(connections.size());
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4, new Server.DaemonThreadFactory("replay"));
+        start = System.currentTimeMillis();
+        startCpu = cpuTime();
+        for (final Connection connection : connections.values()) {
+            String route = routes.get(connection.route);
+            if (route != null) {
+                ProxyService.setPreferredProxy(connection.host(), route);
+            }
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                client(connection, proxyPort, originPort);
+                            } finally {
+                                done.countDown();
+                            }
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }, (long) (connection.arrival / speed), TimeUnit.MILLISECONDS);
+        }
+        done.await();
+        report();
+    }
+
+    /**
+     * CPU time of the process in nanoseconds, -1 if the vm does not tell.
+     */
+    private static long cpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private void report() {
+        long cpu = cpuTime() - startCpu;
+        List<Long> latencies = new ArrayList<>(firstBytes);
+        Collections.sort(latencies);
+        logger.info("Replayed in {} ms: {} completed, {} failed, {} without handshake, {} bytes in, {} bytes out",
+                System.currentTimeMillis() - start, completed.get(), failed.get(), handshakeFailed.get(),
+                bytesIn.get(), bytesOut.get());
+        long bytes = bytesIn.get() + bytesOut.get();
+        if (startCpu >= 0 && bytes > 0) {
+            logger.info("CPU {} ms, {} ms per GB relayed", cpu / 1000000, cpu * 1000 / bytes);
+        }
+        if (!latencies.isEmpty()) {
+            logger.info("First byte ms p50: {} p90: {} p99: {} max: {}",
+                    latencies.get(latencies.size() / 2), latencies.get(latencies.size() * 9 / 10),
+                    latencies.get(latencies.size() * 99 / 100), latencies.get(latencies.size() - 1));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        TraceReplay replay = new TraceReplay();
+        new JCommander(replay, args);
+        replay.run();
+        // the proxy's accept thread keeps the vm alive
+        System.exit(0);
+    }
+}
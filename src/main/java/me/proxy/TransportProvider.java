@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.concurrent.CompletableFuture;
 
 public interface TransportProvider {
     interface Transport {
@@ -12,15 +13,35 @@ public interface TransportProvider {
         OutputStream getOutputStream() throws IOException;
 
         void close() throws IOException;
+
+        /**
+         * The shared session carrying the transport, if any.
+         */
+        default String getSession() {
+            return null;
+        }
     }
 
     interface TransportProviderFactory {
         TransportProvider create(URI proxyUri);
     }
 
+    /**
+     * Bring the provider up, e.g. establish the first session. Called in background after the listeners are
+     * bound and retried until it succeeds, so it may be called again after a failure; the provider should not
+     * report available before it succeeds.
+     */
+    default void init() throws IOException {
+    }
+
     boolean isAvailable();
 
     String getName();
 
     Transport connect(String host, int port, int timeout) throws IOException;
+
+    /**
+     * Non-blocking counterpart of connect, cancelling the future aborts the attempt and releases the transport.
+     */
+    CompletableFuture<Transport> connectAsync(String host, int port, int timeout);
 }
\ No newline at end of file
@@ -0,0 +1,250 @@
+package me.proxy;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the active tunnels, exposed with JMX and the admin endpoint.
+ *
+ * The throughput of every tunnel is sampled once a second and kept as a moving average, so it does not depend on
+ * how often the tunnels are listed.
+ */
+public class Tunnels {
+    private static final AtomicLong ids = new AtomicLong(0);
+    private static final Map<Long, Tunnel> tunnels = new ConcurrentHashMap<>();
+
+    private static final long SAMPLE_INTERVAL = 1000;
+    // weight of the last sample, about a five second average
+    private static final double SAMPLE_WEIGHT = 0.2;
+    private static final ScheduledExecutorService sampler =
+            Executors.newSingleThreadScheduledExecutor(new Server.DaemonThreadFactory("tunnels"));
+
+    static {
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (Tunnel tunnel : tunnels.values()) {
+                    tunnel.sample(now);
+                }
+            }
+        }, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    static class Tunnel {
+        final long id;
+        private final String client;
+        private final String destination;
+        private final long created;
+        private final Closeable killer;
+        volatile String provider;
+        volatile String session;
+        volatile long bytesIn;
+        volatile long bytesOut;
+        volatile long lastActive;
+        private long sampleTime;
+        private long sampleBytes;
+        // bytes per second, negative until the first sample
+        private double throughput = -1;
+
+        private Tunnel(String client, String destination, Closeable killer) {
+            this.id = ids.incrementAndGet();
+            this.client = client;
+            this.destination = destination;
+            this.killer = killer;
+            this.created = System.currentTimeMillis();
+            this.lastActive = created;
+            this.sampleTime = created;
+        }
+
+        private synchronized void sample(long now) {
+            if (now <= sampleTime) {
+                return;
+            }
+            long bytes = bytesIn + bytesOut;
+            double rate = (bytes - sampleBytes) * 1000.0 / (now - sampleTime);
+            throughput = throughput < 0 ? rate : throughput + (rate - throughput) * SAMPLE_WEIGHT;
+            sampleTime = now;
+            sampleBytes = bytes;
+        }
+
+        // bytes per second, the average since the start before the first sample
+        private synchronized long throughput(long now) {
+            if (throughput < 0) {
+                return (bytesIn + bytesOut) * 1000 / Math.max(1, now - created);
+            }
+            return (long) throughput;
+        }
+    }
+
+    public static class TunnelInfo {
+        private final long id;
+        private final String client;
+        private final String destination;
+        private final String provider;
+        private final String session;
+        private final long age;
+        private final long idle;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long throughput;
+
+        private TunnelInfo(Tunnel tunnel, long now) {
+            this.id = tunnel.id;
+            this.client = tunnel.client;
+            this.destination = tunnel.destination;
+            this.provider = tunnel.provider;
+            this.session = tunnel.session;
+            this.age = now - tunnel.created;
+            this.idle = now - tunnel.lastActive;
+            this.bytesIn = tunnel.bytesIn;
+            this.bytesOut = tunnel.bytesOut;
+            this.throughput = tunnel.throughput(now);
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getClient() {
+            return client;
+        }
+
+        public String getDestination() {
+            return destination;
+        }
+
+        public String getProvider() {
+            return provider;
+        }
+
+        public String getSession() {
+            return session;
+        }
+
+        public long getAge() {
+            return age;
+        }
+
+        public long getIdle() {
+            return idle;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getThroughput() {
+            return throughput;
+        }
+    }
+
+    static Tunnel open(String client, String destination, Closeable killer) {
+        Tunnel tunnel = new Tunnel(client, destination, killer);
+        tunnels.put(tunnel.id, tunnel);
+        return tunnel;
+    }
+
+    static void close(Tunnel tunnel) {
+        tunnels.remove(tunnel.id);
+    }
+
+    /**
+     * Snapshot of the tunnels, largest first by bytes, age, idle or throughput.
+     */
+    public static List<TunnelInfo> list(String sortBy, int limit) {
+        long now = System.currentTimeMillis();
+        List<TunnelInfo> result = new ArrayList<>();
+        for (Tunnel tunnel : tunnels.values()) {
+            result.add(new TunnelInfo(tunnel, now));
+        }
+
+        Comparator<TunnelInfo> comparator;
+        switch (sortBy == null ? "bytes" : sortBy) {
+            case "age":
+                comparator = Comparator.comparingLong(TunnelInfo::getAge);
+                break;
+            case "idle":
+                comparator = Comparator.comparingLong(TunnelInfo::getIdle);
+                break;
+            case "throughput":
+                comparator = Comparator.comparingLong(TunnelInfo::getThroughput);
+                break;
+            case "bytes":
+                comparator = Comparator.comparingLong(info -> info.getBytesIn() + info.getBytesOut());
+                break;
+            default:
+                throw new IllegalArgumentException("unknown sort " + sortBy);
+        }
+        result.sort(comparator.reversed());
+
+        if (limit > 0 && result.size() > limit) {
+            return new ArrayList<>(result.subList(0, limit));
+        }
+        return result;
+    }
+
+    public static boolean kill(long id) {
+        Tunnel tunnel = tunnels.remove(id);
+        if (tunnel == null) {
+            return false;
+        }
+        try {
+            tunnel.killer.close();
+        } catch (IOException ignore) {
+        }
+        return true;
+    }
+
+    public interface TunnelsMXBean {
+        int getCount();
+
+        List<TunnelInfo> getTunnels();
+
+        List<TunnelInfo> listTunnels(String sortBy, int limit);
+
+        boolean kill(long id);
+    }
+
+    public static class TunnelsBean implements TunnelsMXBean {
+        public int getCount() {
+            return tunnels.size();
+        }
+
+        public List<TunnelInfo> getTunnels() {
+            return list("bytes", 0);
+        }
+
+        public List<TunnelInfo> listTunnels(String sortBy, int limit) {
+            return list(sortBy, limit);
+        }
+
+        public boolean kill(long id) {
+            return Tunnels.kill(id);
+        }
+    }
+
+    static void initJMX() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            mbs.registerMBean(new TunnelsBean(), new ObjectName("me.proxy:type=Tunnels"));
+        } catch (Exception ignore) {
+        }
+    }
+}